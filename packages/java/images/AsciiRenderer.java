@@ -0,0 +1,504 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageIO;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Renders images as text, one character per cell of a grid laid over the image. Each character
+ * is picked from the average luminance of every pixel in its cell.
+ * <p>
+ * Luminance is computed once per pixel into a summed-area table (an integral image), so the
+ * average of any cell takes four lookups no matter how large the cell is. Only the entries of
+ * the table that fall on cell corners are kept, which bounds its size by the output instead of
+ * the image; the only other buffer is a single row of pixels.
+ * <p>
+ * The grid is {@link #columns(int) columns} wide. Unless {@link #rows(int) rows} is set, its
+ * height follows the image's aspect ratio, corrected for characters being taller than they are
+ * wide by {@link #charAspect(double) charAspect}. Settings are changed with chained setters:
+ *
+ * <pre>{@code
+ * List<String> lines = new AsciiRenderer().columns(160).render(img);
+ * }</pre>
+ * <p>
+ * For frame sequences, such as video previews, a renderer can also write into a caller's
+ * {@code char[]} or any {@link Appendable}. Its work buffers are kept between frames of the same
+ * size, and in {@link #diff(boolean) diff} mode only the cells that changed since the previous
+ * frame are written, placed with ANSI cursor movements. {@link #play} reads every frame of a
+ * multi-frame file (such as an animated GIF) and renders them in turn.
+ * <p>
+ * Because of the reused buffers, a renderer must not be used by several threads at once.
+ */
+public final class AsciiRenderer {
+	/**
+	 * The characters used by default, from darkest to brightest.
+	 */
+	public static final String DEFAULT_PALETTE = " .,:=#$@";
+
+	/**
+	 * The default number of characters per line.
+	 */
+	public static final int DEFAULT_COLUMNS = 120;
+
+	/**
+	 * The default width of a character divided by its height.
+	 */
+	public static final double DEFAULT_CHAR_ASPECT = 0.5;
+
+	// luminance weights for linear red, green, and blue, scaled so that they sum to 1 << 16
+	private static final int WEIGHT_R = 13933;
+	private static final int WEIGHT_G = 46871;
+	private static final int WEIGHT_B = 4732;
+
+	private String palette = DEFAULT_PALETTE;
+	private int columns = DEFAULT_COLUMNS;
+	private int rows;
+	private double charAspect = DEFAULT_CHAR_ASPECT;
+	private boolean diff;
+
+	// work buffers, reused while the image and grid sizes stay the same
+	private int width, height, cols, lines;
+	private long[][] table;
+	// luminance of every pixel read so far, summed per column of cells
+	private long[] columnSums;
+	private int[] row;
+
+	// characters of the current and previous frame, row by row; previous is valid if hasPrevious
+	private char[] cells = new char[0];
+	private char[] previous = new char[0];
+	private boolean hasPrevious;
+
+	/**
+	 * Creates a renderer with the default settings.
+	 */
+	public AsciiRenderer() {}
+
+	/**
+	 * Sets the characters to draw with, from darkest to brightest.
+	 *
+	 * @param palette the characters to use
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code palette} is empty
+	 */
+	public AsciiRenderer palette(String palette) throws IllegalArgumentException {
+		if (palette.isEmpty())
+			throw new IllegalArgumentException("palette must not be empty");
+
+		this.palette = palette;
+		return this;
+	}
+
+	/**
+	 * Sets the number of characters per line. Images narrower than this get one column per pixel.
+	 * Defaults to {@value #DEFAULT_COLUMNS}.
+	 *
+	 * @param columns the line length
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code columns} is less than 1
+	 */
+	public AsciiRenderer columns(int columns) throws IllegalArgumentException {
+		if (columns < 1)
+			throw new IllegalArgumentException("columns must be positive");
+
+		this.columns = columns;
+		return this;
+	}
+
+	/**
+	 * Sets the number of lines. Images shorter than this get one line per pixel. With 0, the
+	 * default, the number of lines follows from the image's aspect ratio and the character aspect.
+	 *
+	 * @param rows the number of lines, or 0 to keep the image's aspect ratio
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code rows} is negative
+	 */
+	public AsciiRenderer rows(int rows) throws IllegalArgumentException {
+		if (rows < 0)
+			throw new IllegalArgumentException("rows must not be negative");
+
+		this.rows = rows;
+		return this;
+	}
+
+	/**
+	 * Sets the width of a character divided by its height, used to keep the image's aspect ratio
+	 * when the number of lines is not set. Defaults to {@value #DEFAULT_CHAR_ASPECT}.
+	 *
+	 * @param charAspect the character aspect ratio
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code charAspect} is not positive
+	 */
+	public AsciiRenderer charAspect(double charAspect) throws IllegalArgumentException {
+		if (!(charAspect > 0))
+			throw new IllegalArgumentException("charAspect must be positive");
+
+		this.charAspect = charAspect;
+		return this;
+	}
+
+	/**
+	 * Sets whether frames written to an {@link Appendable} only contain the cells that changed
+	 * since the previous frame. In diff mode, every frame is drawn with the top-left corner of the
+	 * terminal as its origin: the first frame (and any frame whose grid size changed) is written in
+	 * full, and later frames move the cursor to each run of changed cells and overwrite just those.
+	 * Defaults to {@code false}.
+	 *
+	 * @param diff {@code true} to write only changes
+	 * @return this object
+	 */
+	public AsciiRenderer diff(boolean diff) {
+		this.diff = diff;
+		hasPrevious = false;
+		return this;
+	}
+
+	/**
+	 * Forgets the previous frame, so that the next frame is written in full even in diff mode.
+	 */
+	public void reset() {
+		hasPrevious = false;
+	}
+
+	/**
+	 * Renders {@code img} as lines of text.
+	 *
+	 * @param img the image to render
+	 * @return one string per line, each {@code columns} characters long (fewer for narrow images)
+	 */
+	public List<String> render(BufferedImage img) {
+		renderCells(img);
+		return lines();
+	}
+
+	/**
+	 * Renders {@code buf} as lines of text.
+	 *
+	 * @param buf the buffer to render
+	 * @return one string per line, each {@code columns} characters long (fewer for narrow images)
+	 */
+	public List<String> render(PixelBuffer buf) {
+		int w = buf.width();
+		return render(w, buf.height(), (y, row) -> buf.getARGB((long) y * w, row, 0, w));
+	}
+
+	/**
+	 * Renders {@code img} into {@code dest}, one line after another, each followed by {@code '\n'}.
+	 *
+	 * @param img the image to render
+	 * @param dest the array to write into
+	 * @return the number of characters written
+	 * @throws IllegalArgumentException if {@code dest} is too short; see {@link #frameLength}
+	 */
+	public int render(BufferedImage img, char[] dest) throws IllegalArgumentException {
+		int length = frameLength(img.getWidth(), img.getHeight());
+		if (dest.length < length)
+			throw new IllegalArgumentException("dest must hold at least " + length + " characters");
+
+		renderCells(img);
+
+		for (int j = 0; j < lines; j++) {
+			System.arraycopy(cells, j * cols, dest, j * (cols + 1), cols);
+			dest[(j * (cols + 1)) + cols] = '\n';
+		}
+
+		return length;
+	}
+
+	/**
+	 * Renders {@code img} to {@code out}. Normally this writes every line, each followed by
+	 * {@code '\n'}; in {@link #diff(boolean) diff} mode it writes the cursor movements and
+	 * characters needed to turn the previous frame into this one.
+	 *
+	 * @param img the image to render
+	 * @param out where the text goes, such as a {@link CharBuffer} or a {@code Writer}
+	 * @throws IOException if {@code out} fails
+	 */
+	public void render(BufferedImage img, Appendable out) throws IOException {
+		renderCells(img);
+
+		if (!diff) {
+			for (int j = 0; j < lines; j++) {
+				out.append(CharBuffer.wrap(cells, j * cols, cols)).append('\n');
+			}
+			return;
+		}
+
+		for (int j = 0; j < lines; j++) {
+			int start = j * cols;
+			int i = 0;
+
+			while (i < cols) {
+				if (hasPrevious && cells[start + i] == previous[start + i]) {
+					i++;
+					continue;
+				}
+
+				// extend the run over short stretches of unchanged cells, which are cheaper to
+				// rewrite than to skip with another cursor movement
+				int end = i + 1;
+				for (int k = end; k < cols && k < end + 8; k++) {
+					if (!hasPrevious || cells[start + k] != previous[start + k]) {
+						end = k + 1;
+					}
+				}
+
+				out.append("\033[").append(Integer.toString(j + 1)).append(';')
+					.append(Integer.toString(i + 1)).append('H');
+				out.append(CharBuffer.wrap(cells, start + i, end - i));
+				i = end;
+			}
+		}
+
+		// keep this frame to compare the next one against
+		char[] tmp = previous;
+		previous = cells;
+		cells = tmp;
+		hasPrevious = true;
+	}
+
+	/**
+	 * Returns the number of characters {@link #render(BufferedImage, char[])} writes for an image
+	 * of the given size with the current settings.
+	 *
+	 * @param width the image width in pixels
+	 * @param height the image height in pixels
+	 * @return the frame length, line breaks included
+	 */
+	public int frameLength(int width, int height) {
+		int c = Math.min(columns, width);
+		int l = Math.min(rows > 0 ? rows : defaultRows(width, height, c), height);
+		return l * (c + 1);
+	}
+
+	/**
+	 * Renders every frame of a multi-frame image file, such as an animated GIF, to {@code out} in
+	 * diff mode, pausing between frames to hold the given frame rate. Frames are read one at a
+	 * time through an {@link ImageReader}. GIF frames that only cover part of the image are drawn
+	 * over the frames before them at their offset; their disposal methods are not applied.
+	 *
+	 * @param source the file to read
+	 * @param out where the text goes, usually a terminal
+	 * @param fps frames per second, or 0 to render as fast as possible
+	 * @return the number of frames rendered
+	 * @throws IOException if the file cannot be decoded or {@code out} fails
+	 * @throws InterruptedException if the thread is interrupted while pausing
+	 * @throws IllegalArgumentException if {@code fps} is negative
+	 */
+	public int play(File source, Appendable out, double fps)
+			throws IOException, InterruptedException, IllegalArgumentException {
+		if (fps < 0)
+			throw new IllegalArgumentException("fps must not be negative");
+
+		long interval = fps == 0 ? 0 : (long) (1e9 / fps);
+		boolean wasDiff = diff;
+		diff(true);
+
+		try (ImageInputStream stream = ImageIO.createImageInputStream(source)) {
+			if (stream == null)
+				throw new IOException("cannot read " + source);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				throw new IOException("no reader for " + source);
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, false);
+
+				BufferedImage canvas = null;
+				long next = System.nanoTime();
+				int frame = 0;
+
+				for (;; frame++) {
+					BufferedImage img;
+					try {
+						img = reader.read(frame);
+					} catch (IndexOutOfBoundsException ex) {
+						break;
+					}
+
+					canvas = composite(canvas, img, reader, frame);
+					render(canvas, out);
+
+					if (interval > 0) {
+						next += interval;
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+						}
+					}
+				}
+
+				return frame;
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			diff = wasDiff;
+		}
+	}
+
+	// draws a frame over the frames before it; frames without a GIF offset replace them instead
+	private static BufferedImage composite(BufferedImage canvas, BufferedImage img, ImageReader reader, int frame)
+			throws IOException {
+		IIOMetadata meta = reader.getImageMetadata(frame);
+		Node descriptor = meta == null ? null : find(meta, "javax_imageio_gif_image_1.0", "ImageDescriptor");
+
+		if (descriptor == null) return img;
+
+		int x = Integer.parseInt(attribute(descriptor, "imageLeftPosition"));
+		int y = Integer.parseInt(attribute(descriptor, "imageTopPosition"));
+
+		if (canvas == null) {
+			IIOMetadata streamMeta = reader.getStreamMetadata();
+			Node screen = streamMeta == null
+				? null : find(streamMeta, "javax_imageio_gif_stream_1.0", "LogicalScreenDescriptor");
+
+			int w = x + img.getWidth();
+			int h = y + img.getHeight();
+			if (screen != null) {
+				w = Math.max(w, Integer.parseInt(attribute(screen, "logicalScreenWidth")));
+				h = Math.max(h, Integer.parseInt(attribute(screen, "logicalScreenHeight")));
+			}
+			canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		}
+
+		Graphics2D g = canvas.createGraphics();
+		g.drawImage(img, x, y, null);
+		g.dispose();
+
+		return canvas;
+	}
+
+	private static Node find(IIOMetadata meta, String format, String name) {
+		if (!Arrays.asList(meta.getMetadataFormatNames()).contains(format)) return null;
+
+		for (Node n = meta.getAsTree(format).getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeName().equals(name)) return n;
+		}
+		return null;
+	}
+
+	private static String attribute(Node node, String name) {
+		return node.getAttributes().getNamedItem(name).getNodeValue();
+	}
+
+	private List<String> render(int w, int h, RowReader source) {
+		renderCells(w, h, source);
+		return lines();
+	}
+
+	private List<String> lines() {
+		var res = new ArrayList<String>(lines);
+		for (int j = 0; j < lines; j++) {
+			res.add(new String(cells, j * cols, cols));
+		}
+
+		return res;
+	}
+
+	private void renderCells(BufferedImage img) {
+		int w = img.getWidth();
+		renderCells(w, img.getHeight(), (y, row) -> Images.readRows(img, y, y + 1, row, 0, false));
+	}
+
+	// renders the source into cells, resizing the work buffers if the image or grid size changed
+	private void renderCells(int w, int h, RowReader source) {
+		int c = Math.min(columns, w);
+		int l = Math.min(rows > 0 ? rows : defaultRows(w, h, c), h);
+
+		if (w != width || h != height || c != cols || l != lines) {
+			width = w;
+			height = h;
+			cols = c;
+			lines = l;
+
+			table = new long[l + 1][c + 1];
+			columnSums = new long[c];
+			row = new int[w];
+			cells = new char[c * l];
+			previous = new char[c * l];
+			hasPrevious = false;
+		}
+
+		sumTable(source);
+
+		for (int j = 0; j < lines; j++) {
+			int y0 = cellEdge(j, h, lines);
+			int y1 = cellEdge(j + 1, h, lines);
+			long[] top = table[j];
+			long[] bottom = table[j + 1];
+
+			for (int i = 0; i < cols; i++) {
+				int x0 = cellEdge(i, w, cols);
+				int x1 = cellEdge(i + 1, w, cols);
+
+				long sum  = bottom[i + 1] - bottom[i] - top[i + 1] + top[i];
+				long area = (long) (x1 - x0) * (y1 - y0);
+
+				cells[(j * cols) + i] = palette.charAt((int) ((sum * palette.length()) / (area << 8)));
+			}
+		}
+	}
+
+	private int defaultRows(int w, int h, int cols) {
+		return Math.max(1, (int) Math.round(((double) cols * h / w) * charAspect));
+	}
+
+	// first pixel of cell i when length pixels are split into n cells
+	private static int cellEdge(int i, int length, int n) {
+		return (int) (((long) i * length) / n);
+	}
+
+	// fills table with the summed-area table of pixel luminance at each cell corner: entry [j][i]
+	// is the sum over every pixel above row edge j and left of column edge i
+	private void sumTable(RowReader source) {
+		Arrays.fill(columnSums, 0);
+
+		int y = 0;
+		for (int j = 1; j <= lines; j++) {
+			for (int end = cellEdge(j, height, lines); y < end; y++) {
+				source.read(y, row);
+
+				for (int i = 0, x = 0; i < cols; i++) {
+					long sum = 0;
+					for (int x1 = cellEdge(i + 1, width, cols); x < x1; x++) {
+						sum += luminance(row[x]);
+					}
+					columnSums[i] += sum;
+				}
+			}
+
+			long[] prefix = table[j];
+			for (int i = 0; i < cols; i++) {
+				prefix[i + 1] = prefix[i] + columnSums[i];
+			}
+		}
+	}
+
+	// luminance of an sRGB color in linear light, from 0 to 255
+	private static int luminance(int color) {
+		int linear = Images.gammaExpand(color);
+
+		return ((WEIGHT_R * (linear >> 16 & 0xFF))
+			+ (WEIGHT_G * (linear >> 8 & 0xFF))
+			+ (WEIGHT_B * (linear & 0xFF))) >> 16;
+	}
+
+	@FunctionalInterface
+	private interface RowReader {
+		// reads row y of the source into row as sRGB colors
+		void read(int y, int[] row);
+	}
+}
@@ -0,0 +1,377 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a transform over many image files at once. Decoding, transforming, and encoding are
+ * separate stages, each with its own threads, connected by bounded queues: when a later stage
+ * falls behind, the earlier ones block instead of piling up decoded images, so memory stays
+ * bounded by the queue sizes.
+ * <p>
+ * The decode and encode stages mostly wait on I/O and run on virtual threads when the running JVM
+ * supports them, and on ordinary daemon threads otherwise. The transform stage always runs on
+ * platform threads. Settings are changed with chained setters:
+ *
+ * <pre>{@code
+ * var result = new BatchProcessor(outputDir)
+ *     .transformThreads(8)
+ *     .run(BatchProcessor.listImages(inputDir), img -> Images.quantize(img, 64));
+ * }</pre>
+ */
+public final class BatchProcessor {
+	private final Path outputDir;
+
+	private String format = "png";
+	private int decodeThreads    = 4;
+	private int transformThreads = Runtime.getRuntime().availableProcessors();
+	private int encodeThreads    = 4;
+	private int queueCapacity    = 16;
+
+	/**
+	 * Creates a processor that writes its results into {@code outputDir}.
+	 *
+	 * @param outputDir the directory results are written to; created if it does not exist
+	 */
+	public BatchProcessor(Path outputDir) {
+		this.outputDir = Objects.requireNonNull(outputDir);
+	}
+
+	/**
+	 * Sets the informal name of the output format. Defaults to {@code "png"}.
+	 *
+	 * @param format the output format, such as {@code "png"}
+	 * @return this object
+	 */
+	public BatchProcessor format(String format) {
+		this.format = Objects.requireNonNull(format);
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads decoding input files. Defaults to 4.
+	 *
+	 * @param n the thread count
+	 * @return this object
+	 */
+	public BatchProcessor decodeThreads(int n) {
+		decodeThreads = requirePositive(n);
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads running the transform. Defaults to the number of processors.
+	 *
+	 * @param n the thread count
+	 * @return this object
+	 */
+	public BatchProcessor transformThreads(int n) {
+		transformThreads = requirePositive(n);
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads encoding results. Defaults to 4.
+	 *
+	 * @param n the thread count
+	 * @return this object
+	 */
+	public BatchProcessor encodeThreads(int n) {
+		encodeThreads = requirePositive(n);
+		return this;
+	}
+
+	/**
+	 * Sets how many images may wait between two stages. Defaults to 16.
+	 *
+	 * @param n the capacity of each queue
+	 * @return this object
+	 */
+	public BatchProcessor queueCapacity(int n) {
+		queueCapacity = requirePositive(n);
+		return this;
+	}
+
+	private static int requirePositive(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("value must be positive");
+		return n;
+	}
+
+	/**
+	 * Lists the files in {@code dir} (not its subdirectories) that have a suffix some installed
+	 * {@link ImageIO} reader understands, in name order.
+	 *
+	 * @param dir the directory to list
+	 * @return the image files in the directory
+	 * @throws IOException if the directory cannot be read
+	 */
+	public static List<Path> listImages(Path dir) throws IOException {
+		var suffixes = Stream.of(ImageIO.getReaderFileSuffixes())
+			.map(String::toLowerCase)
+			.collect(Collectors.toSet());
+
+		try (Stream<Path> files = Files.list(dir)) {
+			return files
+				.filter(Files::isRegularFile)
+				.filter(f -> suffixes.contains(suffix(f).toLowerCase()))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Decodes every file in {@code inputs}, applies {@code transform}, and writes the result to
+	 * the output directory under the input's name with the output format's suffix. A file that
+	 * fails at any stage, including with an {@link Error}, is recorded in the result and does not
+	 * stop the others. So is a file whose output name was already taken by an earlier input (such
+	 * as {@code b/x.png} after {@code a/x.jpg}), which is skipped rather than overwriting it.
+	 *
+	 * @param inputs the image files to process
+	 * @param transform the operation applied to each decoded image
+	 * @return counts, failures, and timing for the run
+	 * @throws IOException if the output directory cannot be created
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public Result run(List<Path> inputs, UnaryOperator<BufferedImage> transform)
+			throws IOException, InterruptedException {
+		Files.createDirectories(outputDir);
+
+		long start = System.nanoTime();
+
+		var decoded     = new ArrayBlockingQueue<Item>(queueCapacity);
+		var transformed = new ArrayBlockingQueue<Item>(queueCapacity);
+		var failures    = Collections.synchronizedList(new ArrayList<Path>());
+		var written     = new AtomicInteger();
+		var next        = new AtomicInteger();
+
+		// where each input is written, or null if an earlier input already writes there
+		var dests = new Path[inputs.size()];
+		var taken = new HashSet<Path>();
+		for (int i = 0; i < dests.length; i++) {
+			Path dest = outputDir.resolve(baseName(inputs.get(i)) + "." + format);
+			if (taken.add(dest)) {
+				dests[i] = dest;
+			} else {
+				failures.add(inputs.get(i));
+			}
+		}
+
+		ThreadFactory io = ioThreadFactory();
+		ThreadFactory cpu = r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		};
+
+		// every stage catches failures one item at a time, Errors included, so that no thread dies
+		// while the stage before it still has items to hand over; only queue operations are left
+		// outside the catch, since those can only fail by being interrupted
+		List<Thread> decoders = start(io, decodeThreads, () -> {
+			for (int i = next.getAndIncrement(); i < inputs.size(); i = next.getAndIncrement()) {
+				Path path = inputs.get(i);
+				if (dests[i] == null) continue;
+
+				BufferedImage img;
+				try {
+					var timer = StageEvent.start();
+					img = ImageIO.read(path.toFile());
+					if (img == null)
+						throw new IOException("no reader for " + path);
+					StageEvent.finish(timer, StageListener.Stage.DECODE, pixelCount(img));
+				} catch (Throwable ex) {
+					failures.add(path);
+					continue;
+				}
+
+				decoded.put(new Item(path, dests[i], img));
+			}
+		});
+
+		List<Thread> transformers = start(cpu, transformThreads, () -> {
+			for (Item item = decoded.take(); item != Item.END; item = decoded.take()) {
+				BufferedImage img;
+				try {
+					img = transform.apply(item.image);
+				} catch (Throwable ex) {
+					failures.add(item.path);
+					continue;
+				}
+
+				transformed.put(new Item(item.path, item.dest, img));
+			}
+		});
+
+		List<Thread> encoders = start(io, encodeThreads, () -> {
+			for (Item item = transformed.take(); item != Item.END; item = transformed.take()) {
+				try {
+					var timer = StageEvent.start();
+					if (!ImageIO.write(item.image, format, item.dest.toFile()))
+						throw new IOException("no writer for format " + format);
+					StageEvent.finish(timer, StageListener.Stage.ENCODE, pixelCount(item.image));
+
+					written.incrementAndGet();
+				} catch (Throwable ex) {
+					failures.add(item.path);
+				}
+			}
+		});
+
+		// each stage is told to stop once everything upstream of it has finished
+		try {
+			finish(decoders, decoded, transformThreads);
+			finish(transformers, transformed, encodeThreads);
+			for (Thread t : encoders) {
+				t.join();
+			}
+		} catch (InterruptedException ex) {
+			// stop every stage rather than leave threads blocked on queues nobody reads
+			for (List<Thread> stage : List.of(decoders, transformers, encoders)) {
+				stage.forEach(Thread::interrupt);
+			}
+			throw ex;
+		}
+
+		return new Result(written.get(), new ArrayList<>(failures), System.nanoTime() - start);
+	}
+
+	private static List<Thread> start(ThreadFactory factory, int n, InterruptibleRunnable body) {
+		var threads = new ArrayList<Thread>(n);
+
+		for (int i = 0; i < n; i++) {
+			Thread t = factory.newThread(() -> {
+				try {
+					body.run();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		return threads;
+	}
+
+	private static void finish(List<Thread> stage, BlockingQueue<Item> downstream, int consumers)
+			throws InterruptedException {
+		for (Thread t : stage) {
+			t.join();
+		}
+		for (int i = 0; i < consumers; i++) {
+			downstream.put(Item.END);
+		}
+	}
+
+	// virtual threads when the JVM has them (Java 21+), daemon platform threads otherwise
+	private static ThreadFactory ioThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+			return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return r -> {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			};
+		}
+	}
+
+	private static long pixelCount(BufferedImage img) {
+		return (long) img.getWidth() * img.getHeight();
+	}
+
+	private static String suffix(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1);
+	}
+
+	private static String baseName(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	@FunctionalInterface
+	private interface InterruptibleRunnable {
+		void run() throws InterruptedException;
+	}
+
+	// an image on its way through the pipeline, tagged with the file it came from
+	private static final class Item {
+		// tells a stage's thread that nothing more is coming
+		static final Item END = new Item(null, null, null);
+
+		final Path path;
+		// where the result is written
+		final Path dest;
+		final BufferedImage image;
+
+		Item(Path path, Path dest, BufferedImage image) {
+			this.path = path;
+			this.dest = dest;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * The outcome of a batch run.
+	 */
+	public static final class Result {
+		/**
+		 * The number of images written successfully.
+		 */
+		public final int processed;
+
+		/**
+		 * The input files that could not be decoded, transformed, or written.
+		 */
+		public final List<Path> failures;
+
+		/**
+		 * The wall time of the whole run in nanoseconds.
+		 */
+		public final long nanos;
+
+		Result(int processed, List<Path> failures, long nanos) {
+			this.processed = processed;
+			this.failures = Collections.unmodifiableList(failures);
+			this.nanos = nanos;
+		}
+
+		/**
+		 * Returns the number of images written per second of wall time.
+		 *
+		 * @return the throughput
+		 */
+		public double imagesPerSecond() {
+			return nanos == 0 ? 0 : processed / (nanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%d images in %d ms (%.1f images/s), %d failed",
+				processed, nanos / 1_000_000, imagesPerSecond(), failures.size()
+			);
+		}
+	}
+}
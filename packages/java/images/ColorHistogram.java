@@ -0,0 +1,51 @@
+/**
+ * A 3-D color histogram with 5 bits per channel. Each cell keeps the number of colors that fell
+ * into it along with the sum of each of their channels, so the exact average color of any group of
+ * cells can be recovered.
+ */
+final class ColorHistogram {
+	static final int BITS  = 5;
+	static final int SIZE  = 1 << BITS;
+	static final int CELLS = SIZE * SIZE * SIZE;
+
+	private static final int SHIFT = 8 - BITS;
+
+	final long[] counts = new long[CELLS];
+	final long[] sumR  = new long[CELLS];
+	final long[] sumG  = new long[CELLS];
+	final long[] sumB  = new long[CELLS];
+
+	static int cell(int r, int g, int b) {
+		return (r << (2 * BITS)) | (g << BITS) | b;
+	}
+
+	static int cellOf(int color) {
+		return cell(color >> (16 + SHIFT) & (SIZE - 1), color >> (8 + SHIFT) & (SIZE - 1), (color & 0xFF) >> SHIFT);
+	}
+
+	void add(int color) {
+		int cell = cellOf(color);
+
+		counts[cell]++;
+		sumR[cell] += color >> 16 & 0xFF;
+		sumG[cell] += color >> 8 & 0xFF;
+		sumB[cell] += color & 0xFF;
+	}
+
+	void addAll(int[] colors, int from, int to) {
+		for (int i = from; i < to; i++) {
+			add(colors[i]);
+		}
+	}
+
+	// adds every cell of other into this histogram and returns this histogram
+	ColorHistogram merge(ColorHistogram other) {
+		for (int i = 0; i < CELLS; i++) {
+			counts[i] += other.counts[i];
+			sumR[i] += other.sumR[i];
+			sumG[i] += other.sumG[i];
+			sumB[i] += other.sumB[i];
+		}
+		return this;
+	}
+}
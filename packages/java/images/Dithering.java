@@ -0,0 +1,229 @@
+import java.util.Arrays;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dithered palette mapping. Both methods take and return packed colors in linear RGB, row by row,
+ * and keep each pixel's alpha.
+ */
+final class Dithering {
+	// 8x8 Bayer threshold matrix, values 0 to 63
+	private static final int[] BAYER = {
+		 0, 32,  8, 40,  2, 34, 10, 42,
+		48, 16, 56, 24, 50, 18, 58, 26,
+		12, 44,  4, 36, 14, 46,  6, 38,
+		60, 28, 52, 20, 62, 30, 54, 22,
+		 3, 35, 11, 43,  1, 33,  9, 41,
+		51, 19, 59, 27, 49, 17, 57, 25,
+		15, 47,  7, 39, 13, 45,  5, 37,
+		63, 31, 55, 23, 61, 29, 53, 21
+	};
+
+	private Dithering() {}
+
+	/**
+	 * Ordered dithering: each pixel is offset by a fixed threshold that depends only on its
+	 * position, then mapped to the nearest palette color. Pixels do not depend on each other, so
+	 * the work is split into chunks on {@code pool} if there is one.
+	 */
+	static int[] ordered(int[] pixels, int w, int h, PaletteMapper mapper, ForkJoinPool pool) {
+		int[] res = new int[pixels.length];
+
+		// roughly the distance between neighboring palette colors along one channel
+		int spread = (int) Math.round(256 / Math.cbrt(mapper.size()));
+
+		Images.forRange(pool, pixels.length, (from, to) -> {
+			for (int i = from; i < to; i++) {
+				int x = i % w;
+				int y = i / w;
+
+				// threshold in the range (-spread / 2, spread / 2)
+				int offset = ((2 * BAYER[((y & 7) << 3) | (x & 7)] + 1 - 64) * spread) / 128;
+
+				int color = pixels[i];
+				int r = clamp((color >> 16 & 0xFF) + offset);
+				int g = clamp((color >> 8 & 0xFF) + offset);
+				int b = clamp((color & 0xFF) + offset);
+
+				int nearest = mapper.nearest(r << 16 | g << 8 | b);
+				res[i] = (color & 0xFF000000) | (nearest & 0xFFFFFF);
+			}
+		});
+
+		return res;
+	}
+
+	/**
+	 * Floyd-Steinberg error diffusion with integer error terms in sixteenths.
+	 * <p>
+	 * Each row only needs the error pushed into it by the row above, so on its own a single pass
+	 * keeps just two rows of error. With a pool, each row is split into chunks of columns that run
+	 * as a wavefront: chunk {@code c} of a row may start once chunk {@code c - 1} of the same row
+	 * and chunk {@code c + 1} of the row above are done, since those push the last error into it.
+	 * A chunk is only forked once both are done, so no task ever waits on another. Error sums are
+	 * exact integers, so the result does not depend on how the chunks are scheduled.
+	 */
+	static int[] floydSteinberg(int[] pixels, int w, int h, PaletteMapper mapper, ForkJoinPool pool) {
+		int[] res = new int[pixels.length];
+
+		int chunk = pool == null ? w : Math.max(MIN_CHUNK, (w + (4 * pool.getParallelism()) - 1) / (4 * pool.getParallelism()));
+		var wave = new Wavefront(pixels, res, w, h, mapper, chunk);
+
+		if (pool == null || wave.chunks == 1) {
+			for (int y = 0; y < h; y++) {
+				for (int c = 0; c < wave.chunks; c++) {
+					wave.diffuse(y, c);
+				}
+			}
+		} else {
+			pool.invoke(new Tile(null, wave, 0, 0));
+		}
+
+		return res;
+	}
+
+	// fewest columns worth a task of their own
+	private static final int MIN_CHUNK = 64;
+
+	// the shared state of one Floyd-Steinberg pass
+	private static final class Wavefront {
+		final int[] pixels, res;
+		final int w, h, chunk, chunks;
+		final PaletteMapper mapper;
+
+		// error pushed into each row by the row above, followed by the error carried right from the
+		// previous chunk of the row; row y uses slot y % errors.length. Every row older than
+		// (chunks + 1) rows back is finished by the time a row starts, so slots are never reused
+		// while in use. A single chunk runs the rows in order, each reading only its own slot and
+		// writing the next, so two slots are enough
+		final int[][] errors;
+
+		// dependencies each tile is still waiting for, tile (y, c) at (y * chunks) + c
+		final AtomicIntegerArray pending;
+
+		Wavefront(int[] pixels, int[] res, int w, int h, PaletteMapper mapper, int chunk) {
+			this.pixels = pixels;
+			this.res = res;
+			this.w = w;
+			this.h = h;
+			this.mapper = mapper;
+			this.chunk = chunk;
+
+			chunks = (w + chunk - 1) / chunk;
+			errors = new int[chunks == 1 ? 2 : Math.min(h + 1, chunks + 2)][(3 * (w + 2)) + 3];
+
+			pending = new AtomicIntegerArray(chunks == 1 ? 0 : h * chunks);
+			if (chunks > 1) {
+				for (int y = 0; y < h; y++) {
+					for (int c = 0; c < chunks; c++) {
+						pending.set((y * chunks) + c, (c > 0 ? 1 : 0) + (y > 0 ? 1 : 0));
+					}
+				}
+			}
+		}
+
+		// marks tile (y, c) as having one dependency fewer, and returns whether it is ready
+		boolean release(int y, int c) {
+			return pending.decrementAndGet((y * chunks) + c) == 0;
+		}
+
+		// diffuses the pixels of chunk c of row y
+		void diffuse(int y, int c) {
+			// error for row y, pushed in by row y - 1, and error this row pushes into row y + 1; both
+			// are offset by one pixel so that x - 1 and x + 1 are always in bounds
+			int[] cur  = errors[y % errors.length];
+			int[] next = errors[(y + 1) % errors.length];
+			int carry = 3 * (w + 2);
+
+			if (c == 0) {
+				Arrays.fill(next, 0);
+			}
+
+			// error pushed right along this row
+			int carryR = cur[carry], carryG = cur[carry + 1], carryB = cur[carry + 2];
+
+			for (int x = c * chunk, end = Math.min(w, x + chunk); x < end; x++) {
+				int i = (y * w) + x;
+				int e = 3 * (x + 1);
+				int color = pixels[i];
+
+				int r = clamp((color >> 16 & 0xFF) + ((cur[e]     + carryR + 8) >> 4));
+				int g = clamp((color >> 8 & 0xFF)  + ((cur[e + 1] + carryG + 8) >> 4));
+				int b = clamp((color & 0xFF)       + ((cur[e + 2] + carryB + 8) >> 4));
+
+				int nearest = mapper.nearest(r << 16 | g << 8 | b);
+				res[i] = (color & 0xFF000000) | (nearest & 0xFFFFFF);
+
+				int er = r - (nearest >> 16 & 0xFF);
+				int eg = g - (nearest >> 8 & 0xFF);
+				int eb = b - (nearest & 0xFF);
+
+				// 7/16 to the right, then 3/16, 5/16, and 1/16 below left, below, and below right
+				carryR = 7 * er;
+				carryG = 7 * eg;
+				carryB = 7 * eb;
+
+				next[e - 3] += 3 * er;
+				next[e - 2] += 3 * eg;
+				next[e - 1] += 3 * eb;
+				next[e]     += 5 * er;
+				next[e + 1] += 5 * eg;
+				next[e + 2] += 5 * eb;
+				next[e + 3] += er;
+				next[e + 4] += eg;
+				next[e + 5] += eb;
+			}
+
+			cur[carry] = carryR;
+			cur[carry + 1] = carryG;
+			cur[carry + 2] = carryB;
+		}
+	}
+
+	// chunk c of row y, forked by the tile that finished its last dependency
+	private static final class Tile extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final Wavefront wave;
+		private final int y, c;
+
+		Tile(Tile parent, Wavefront wave, int y, int c) {
+			super(parent);
+			this.wave = wave;
+			this.y = y;
+			this.c = c;
+		}
+
+		@Override
+		public void compute() {
+			// once any tile has failed, the rest of the pass is abandoned
+			if (getRoot().isDone()) return;
+
+			wave.diffuse(y, c);
+
+			// tile (y, c + 1) waits for this tile, and so does tile (y + 1, c - 1), which needs the
+			// error this tile pushes below left; the last chunk of a row also holds up the one below
+			if (c + 1 < wave.chunks && wave.release(y, c + 1)) {
+				fork(y, c + 1);
+			}
+			if (y + 1 < wave.h && c > 0 && wave.release(y + 1, c - 1)) {
+				fork(y + 1, c - 1);
+			}
+			if (y + 1 < wave.h && c == wave.chunks - 1 && wave.release(y + 1, c)) {
+				fork(y + 1, c);
+			}
+
+			tryComplete();
+		}
+
+		private void fork(int y, int c) {
+			addToPendingCount(1);
+			new Tile(this, wave, y, c).fork();
+		}
+	}
+
+	private static int clamp(int channel) {
+		return Math.max(0, Math.min(255, channel));
+	}
+}
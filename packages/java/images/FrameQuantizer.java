@@ -0,0 +1,292 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Quantizes a sequence of frames, such as video, reusing work from one frame to the next. The
+ * palette is kept until the color distribution drifts too far from the frame it was built from,
+ * and only the tiles whose pixels changed since the previous frame are mapped again.
+ * <p>
+ * Each frame is divided into square tiles, and each tile gets a 64-bit checksum of its pixels;
+ * a tile whose checksum matches the previous frame's is left as it was. A coarse histogram of the
+ * frame (4 bits per channel) is kept up to date from the changed tiles alone, and the palette is
+ * rebuilt once the share of pixels that moved between its cells, compared with the frame the
+ * palette was built from, goes over the {@link #rebuildThreshold(double) threshold}.
+ * <p>
+ * {@link #next(BufferedImage)} returns the same image every time, updated in place, so callers
+ * that keep frames must copy them. The dithering setting of the options is not applied, since
+ * error diffusion does not stay within a tile. Instances are not safe to use from multiple
+ * threads.
+ *
+ * <pre>{@code
+ * var frames = new FrameQuantizer(64, new QuantizeOptions().lookup(QuantizeOptions.Lookup.RGB555));
+ * for (BufferedImage frame : video) {
+ *     show(frames.next(frame));
+ * }
+ * }</pre>
+ */
+public final class FrameQuantizer {
+	/**
+	 * The default width and height of a tile in pixels.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	/**
+	 * The default share of pixels that may change histogram cells before the palette is rebuilt.
+	 */
+	public static final double DEFAULT_REBUILD_THRESHOLD = 0.05;
+
+	private static final int COARSE_CELLS = 1 << 12;
+
+	private final int numColors;
+	private final QuantizeOptions options;
+
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private double rebuildThreshold = DEFAULT_REBUILD_THRESHOLD;
+
+	// state of the previous frame, reset when the frame size changes
+	private int width, height, tilesX, tilesY;
+	private int[] previous, incoming;	// sRGB pixels of the previous and the current frame
+	private int[] linear;				// linear RGB pixels of the current frame
+	private long[] checksums;
+	private boolean[] changed;
+	private BufferedImage result;
+	private int[] resultData;
+
+	// coarse histogram of the current frame, and of the frame the palette was built from
+	private final int[] histogram = new int[COARSE_CELLS];
+	private final int[] reference = new int[COARSE_CELLS];
+	private PaletteMapper mapper;
+
+	private long frames, rebuilds, tilesMapped, tilesSkipped;
+
+	/**
+	 * Creates a frame quantizer.
+	 *
+	 * @param numColors the maximum number of colors in each frame
+	 * @param options palette engine, lookup mode, cache, and pool used when the palette is built
+	 * @throws IllegalArgumentException if {@code numColors} is less than 1
+	 */
+	public FrameQuantizer(int numColors, QuantizeOptions options) throws IllegalArgumentException {
+		if (numColors < 1)
+			throw new IllegalArgumentException("numColors must be positive");
+
+		this.numColors = numColors;
+		this.options = Objects.requireNonNull(options);
+	}
+
+	/**
+	 * Sets the width and height of the tiles changes are tracked in. Defaults to
+	 * {@value #DEFAULT_TILE_SIZE}. Takes effect with the next frame of a new size, or after
+	 * {@link #reset()}.
+	 *
+	 * @param size the tile size in pixels
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code size} is less than 1
+	 */
+	public FrameQuantizer tileSize(int size) throws IllegalArgumentException {
+		if (size < 1)
+			throw new IllegalArgumentException("tile size must be positive");
+
+		tileSize = size;
+		return this;
+	}
+
+	/**
+	 * Sets how far the color distribution may drift before the palette is rebuilt, as the share
+	 * of pixels (from 0 to 1) that would have to move between histogram cells to turn the
+	 * palette's frame into the current one. 0 rebuilds the palette whenever the histogram changes,
+	 * and 1 never rebuilds it. Defaults to {@value #DEFAULT_REBUILD_THRESHOLD}.
+	 *
+	 * @param threshold the drift threshold
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code threshold} is not between 0 and 1
+	 */
+	public FrameQuantizer rebuildThreshold(double threshold) throws IllegalArgumentException {
+		if (!(threshold >= 0 && threshold <= 1))
+			throw new IllegalArgumentException("threshold must be between 0 and 1");
+
+		rebuildThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Forgets the previous frame and palette, so that the next frame is quantized from scratch.
+	 */
+	public void reset() {
+		width = 0;
+		height = 0;
+		mapper = null;
+	}
+
+	/**
+	 * Returns the number of frames quantized so far.
+	 *
+	 * @return the frame count
+	 */
+	public long frames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of times a palette was built, including the first frame's.
+	 *
+	 * @return the rebuild count
+	 */
+	public long rebuilds() {
+		return rebuilds;
+	}
+
+	/**
+	 * Returns the number of tiles mapped to the palette so far.
+	 *
+	 * @return the mapped tile count
+	 */
+	public long tilesMapped() {
+		return tilesMapped;
+	}
+
+	/**
+	 * Returns the number of tiles left as they were because neither they nor the palette changed.
+	 *
+	 * @return the skipped tile count
+	 */
+	public long tilesSkipped() {
+		return tilesSkipped;
+	}
+
+	/**
+	 * Quantizes the next frame.
+	 *
+	 * @param frame the frame to quantize
+	 * @return the quantized frame; the same image is returned and overwritten by every call until
+	 *   the frame size changes
+	 */
+	public BufferedImage next(BufferedImage frame) {
+		int w = frame.getWidth();
+		int h = frame.getHeight();
+
+		boolean first = w != width || h != height;
+		if (first) {
+			resize(w, h);
+		}
+
+		Images.readRows(frame, 0, h, incoming, 0, false);
+
+		// find the changed tiles and bring the linear pixels and histogram up to date
+		int changedTiles = 0;
+		for (int t = 0; t < changed.length; t++) {
+			long sum = checksum(incoming, t);
+
+			changed[t] = first || sum != checksums[t];
+			if (changed[t]) {
+				checksums[t] = sum;
+				update(t, first);
+				changedTiles++;
+			}
+		}
+
+		int[] tmp = previous;
+		previous = incoming;
+		incoming = tmp;
+
+		boolean rebuild = mapper == null || (changedTiles > 0 && drift() > rebuildThreshold);
+		if (rebuild) {
+			mapper = options.lookup().createMapper(Images.getPalette(linear, width, height, numColors, options));
+			System.arraycopy(histogram, 0, reference, 0, COARSE_CELLS);
+			rebuilds++;
+		}
+
+		for (int t = 0; t < changed.length; t++) {
+			if (rebuild || changed[t]) {
+				map(t);
+				tilesMapped++;
+			} else {
+				tilesSkipped++;
+			}
+		}
+
+		frames++;
+		return result;
+	}
+
+	private void resize(int w, int h) {
+		width = w;
+		height = h;
+		tilesX = (w + tileSize - 1) / tileSize;
+		tilesY = (h + tileSize - 1) / tileSize;
+
+		previous = new int[w * h];
+		incoming = new int[w * h];
+		linear = new int[w * h];
+		checksums = new long[tilesX * tilesY];
+		changed = new boolean[tilesX * tilesY];
+
+		result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		resultData = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+
+		Arrays.fill(histogram, 0);
+		mapper = null;
+	}
+
+	// 64-bit hash of the pixels of tile t
+	private long checksum(int[] pixels, int t) {
+		int x0 = (t % tilesX) * tileSize, x1 = Math.min(width, x0 + tileSize);
+		int y0 = (t / tilesX) * tileSize, y1 = Math.min(height, y0 + tileSize);
+
+		long h = 0x9E3779B97F4A7C15L;
+		for (int y = y0; y < y1; y++) {
+			for (int i = (y * width) + x0, end = (y * width) + x1; i < end; i++) {
+				h = (h ^ pixels[i]) * 0xC2B2AE3D27D4EB4FL;
+				h ^= h >>> 29;
+			}
+		}
+
+		return h;
+	}
+
+	// moves the pixels of tile t from the previous frame to the incoming one in the histogram, and
+	// converts them to linear RGB
+	private void update(int t, boolean first) {
+		int x0 = (t % tilesX) * tileSize, x1 = Math.min(width, x0 + tileSize);
+		int y0 = (t / tilesX) * tileSize, y1 = Math.min(height, y0 + tileSize);
+
+		for (int y = y0; y < y1; y++) {
+			for (int i = (y * width) + x0, end = (y * width) + x1; i < end; i++) {
+				if (!first) {
+					histogram[coarseCell(previous[i])]--;
+				}
+				histogram[coarseCell(incoming[i])]++;
+				linear[i] = Images.gammaExpand(incoming[i]);
+			}
+		}
+	}
+
+	// maps the pixels of tile t to the palette, straight into the result
+	private void map(int t) {
+		int x0 = (t % tilesX) * tileSize, x1 = Math.min(width, x0 + tileSize);
+		int y0 = (t / tilesX) * tileSize, y1 = Math.min(height, y0 + tileSize);
+
+		for (int y = y0; y < y1; y++) {
+			for (int i = (y * width) + x0, end = (y * width) + x1; i < end; i++) {
+				resultData[i] = Images.gammaCompress(mapper.nearest(linear[i]));
+			}
+		}
+	}
+
+	// share of pixels that would have to move between histogram cells to turn the palette's frame
+	// into the current one (the total variation distance of the two histograms)
+	private double drift() {
+		long moved = 0;
+		for (int c = 0; c < COARSE_CELLS; c++) {
+			moved += Math.abs(histogram[c] - reference[c]);
+		}
+
+		return moved / (2.0 * width * height);
+	}
+
+	private static int coarseCell(int color) {
+		return (color >> 12 & 0xF00) | (color >> 8 & 0xF0) | (color >> 4 & 0xF);
+	}
+}
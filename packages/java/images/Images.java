@@ -2,33 +2,71 @@ import static java.lang.System.out;
 
 import java.awt.Graphics2D;
 import java.awt.Image;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
 
 import javax.imageio.ImageIO;
 
 public final class Images {
-	private static final int N_CHANNELS = 3;
+	// smallest number of pixels worth handing to a separate fork/join task
+	private static final int PARALLEL_THRESHOLD = 1 << 15;
+	// number of pixels read from a PixelBuffer at a time
+	private static final int BUFFER_BAND_PIXELS = 1 << 14;
 
-	public static void main(String[] args) throws IOException {
+	// notified about every stage, or null
+	private static volatile StageListener stageListener;
+
+	// sRGB <-> linear RGB conversion for a single 8-bit channel, indexed by channel value
+	static final int[] SRGB_TO_LINEAR = createExpansionTable();
+	static final int[] LINEAR_TO_SRGB = createCompressionTable();
+
+	// every 8-bit channel value mapped to itself
+	private static final int[] IDENTITY = createIdentityTable();
+
+	// luminance weight of each linear channel value, scaled to [0, 1], for getGray
+	static final float[] GRAY_R = createGrayTable(0.2126);
+	static final float[] GRAY_G = createGrayTable(0.7152);
+	static final float[] GRAY_B = createGrayTable(0.0722);
+
+	// the batch gamma and gray loops, vectorized when possible; after the tables they read
+	private static final PixelKernels KERNELS = PixelKernels.get();
+
+	public static void main(String[] args) throws IOException, InterruptedException {
 		// TODO: make into command line utility once parse-args is done
 		// TODO: update implementation to use java.nio API where possible
 
+		if (args.length > 0 && args[0].equals("batch")) {
+			batch(args);
+			return;
+		}
+
 		long start = System.currentTimeMillis();
 		
 		File source = new File("./test/sunglasses.jpg");
+		var timer = StageEvent.start();
 		var original = ImageIO.read(source);
+		StageEvent.finish(timer, StageListener.Stage.DECODE, (long) original.getWidth() * original.getHeight());
 
 		var ascii = toASCII(original);
 		var fw = new PrintWriter(new File("./test/ascii.txt"));
@@ -74,6 +112,59 @@ public final class Images {
 
 	private Images() {}
 
+	/**
+	 * Registers the listener told about every stage run by this class and the others in this
+	 * package: how long it took, how many pixels it covered, and how much it allocated. Stages
+	 * are not timed at all while no listener is registered.
+	 * 
+	 * @param listener the listener, or {@code null} to stop listening
+	 */
+	public static void setStageListener(StageListener listener) {
+		stageListener = listener;
+	}
+
+	/**
+	 * Returns the registered stage listener.
+	 * 
+	 * @return the listener, or {@code null} if there is none
+	 */
+	public static StageListener getStageListener() {
+		return stageListener;
+	}
+
+	// usage: batch <output dir> <number of colors> <input file or directory>...
+	private static void batch(String[] args) throws IOException, InterruptedException {
+		if (args.length < 4) {
+			out.println("usage: Images batch <output dir> <number of colors> <input file or directory>...");
+			return;
+		}
+
+		Path outputDir = Path.of(args[1]);
+		int numColors  = Integer.parseInt(args[2]);
+
+		var inputs = new ArrayList<Path>();
+		for (int i = 3; i < args.length; i++) {
+			Path input = Path.of(args[i]);
+
+			if (Files.isDirectory(input)) {
+				inputs.addAll(BatchProcessor.listImages(input));
+			} else {
+				inputs.add(input);
+			}
+		}
+
+		var stages = new StageHistogram();
+		setStageListener(stages);
+
+		var result = new BatchProcessor(outputDir).run(inputs, img -> quantize(img, numColors));
+
+		out.println(result);
+		out.print(stages);
+		for (Path failure : result.failures) {
+			out.println("failed: " + failure);
+		}
+	}
+
 	public static BufferedImage createBufferedImage(Image img) {
 		if (img instanceof BufferedImage) {
 			return (BufferedImage) img;
@@ -98,310 +189,769 @@ public final class Images {
 		if ((w * h) != pixels.length)
 			throw new IllegalArgumentException("pixels array must exactly fill dimensions (w x h == # of pixels)");
 
-		// convert from linear RGB to sRGB
-		pixels = IntStream.of(pixels)
-			.map(Images::gammaCompress)
-			.toArray();
-			
 		BufferedImage res = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
 		int[] internalBuffer = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
-		System.arraycopy(pixels, 0, internalBuffer, 0, pixels.length);
+
+		// convert from linear RGB to sRGB, straight into the image's buffer
+		for (int i = 0; i < pixels.length; i++) {
+			internalBuffer[i] = gammaCompress(pixels[i]);
+		}
 
 		return res;
 	}
 
+	// converts pixels from linear RGB to sRGB in place and wraps them in a TYPE_INT_ARGB image
+	// without copying them; only for arrays no one else holds on to
+	private static BufferedImage wrapPixels(int[] pixels, int w, int h, ForkJoinPool pool) {
+		var timer = StageEvent.start();
+		forRange(pool, pixels.length, (from, to) -> gammaCompress(pixels, from, to));
+		StageEvent.finish(timer, StageListener.Stage.GAMMA, pixels.length);
+
+		var cm = (DirectColorModel) ColorModel.getRGBdefault();
+		WritableRaster raster = Raster.createPackedRaster(
+			new DataBufferInt(pixels, pixels.length), w, h, w, cm.getMasks(), null
+		);
+
+		return new BufferedImage(cm, raster, false, null);
+	}
+
 	public static BufferedImage createGrayscaleImage(byte[] pixels, int w, int h) {
 		if ((w * h) != pixels.length)
 			throw new IllegalArgumentException("pixels array must exactly fill dimensions (w x h == # of pixels)");
 
-		// convert from linear RGB to sRGB
-		for (int i = 0; i < pixels.length; i++) {
-			pixels[i] = gammaCompress(pixels[i]);
-		}
-
 		BufferedImage res = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
 		byte[] internalBuffer = ((DataBufferByte) res.getRaster().getDataBuffer()).getData();
-		System.arraycopy(pixels, 0, internalBuffer, 0, pixels.length);
+
+		// convert from linear RGB to sRGB, straight into the image's buffer
+		for (int i = 0; i < pixels.length; i++) {
+			internalBuffer[i] = gammaCompress(pixels[i]);
+		}
 
 		return res;
 	}
 
 	public static BufferedImage quantize(BufferedImage img, int numColors) throws IllegalArgumentException {
+		return quantize(img, numColors, new QuantizeOptions());
+	}
+
+	public static BufferedImage quantize(BufferedImage img, int numColors, QuantizeOptions options)
+			throws IllegalArgumentException {
 		if (img == null) return null;
 
-		int[] pixels    = getPixels(img);
-		int[] palette   = getPalette(pixels, numColors);
-		int[] quantized = quantize(pixels, palette);
+		ForkJoinPool pool = options.pool();
 
-		return createBufferedImage(quantized, img.getWidth(), img.getHeight());
+		int[] pixels  = getPixels(img, pool);
+		int[] palette = getPalette(pixels, img.getWidth(), img.getHeight(), numColors, options);
+
+		return quantize(pixels, img.getWidth(), img.getHeight(), palette, options);
 	}
 
-	private static int[] getPixels(BufferedImage img) {
-		// get colors of all pixels in img
-		int[] pixels = img.getRGB(
-			0, 0, img.getWidth(), img.getHeight(),	// x, y, w, h
-			null, 0, img.getWidth()					// target array, offset, scan size
-		);
+	/**
+	 * Quantizes {@code img} once for each entry of {@code counts}. The pixels are read and the
+	 * palettes built only once for all of the counts (see
+	 * {@link #getPalettes(int[], int[], QuantizeOptions)}); only the mapping stage runs per count.
+	 * 
+	 * @param img the image to quantize
+	 * @param counts the maximum number of colors for each result
+	 * @param options palette engine, lookup mode, cache, and pool
+	 * @return the quantized images, keyed by color count in the order the counts were given
+	 * @throws IllegalArgumentException if any count is not positive
+	 */
+	public static Map<Integer, BufferedImage> quantize(BufferedImage img, int[] counts, QuantizeOptions options)
+			throws IllegalArgumentException {
+		if (img == null) return null;
+
+		ForkJoinPool pool = options.pool();
+
+		int[] pixels = getPixels(img, pool);
+		Map<Integer, int[]> palettes = getPalettes(pixels, img.getWidth(), img.getHeight(), counts, options);
+		var res = new LinkedHashMap<Integer, BufferedImage>();
 
-		// convert from sRGB to linear RGB
-		return IntStream.of(pixels)
-			.map(Images::gammaExpand)
-			.toArray();
+		for (var entry : palettes.entrySet()) {
+			res.put(entry.getKey(), quantize(pixels, img.getWidth(), img.getHeight(), entry.getValue(), options));
+		}
+
+		return res;
 	}
 
-	private static int[] quantize(int[] pixels, int[] palette) {
-		int[] quantized = new int[pixels.length];
-		
-		for (int i = 0; i < pixels.length; i++) {
-			int[] pix = getRGB(pixels[i]);
+	/**
+	 * Maps every pixel of {@code img} onto the palette of an existing mapper. Reusing one mapper
+	 * across several images lets an {@link InverseColormap} keep the cells it has already filled.
+	 * 
+	 * @param img the image to quantize
+	 * @param mapper the mapper holding the target palette (in linear RGB)
+	 * @return the quantized image
+	 */
+	public static BufferedImage quantize(BufferedImage img, PaletteMapper mapper) {
+		if (img == null) return null;
+
+		var timer = StageEvent.start();
+		var res = new PixelPipeline().expand().map(mapper).compress().apply(img);
+		StageEvent.finish(timer, StageListener.Stage.MAPPING, (long) img.getWidth() * img.getHeight());
+
+		return res;
+	}
 
-			int minIndex = 0;
-			double minDist = Double.MAX_VALUE;
+	static int[] getPixels(BufferedImage img, ForkJoinPool pool) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		var timer = StageEvent.start();
+		int[] pixels = new int[w * h];
+
+		// work in bands of whole rows so each task can read its part of the image on its own
+		forRange(pool, h, Math.max(1, PARALLEL_THRESHOLD / w), (fromRow, toRow) -> {
+			readRows(img, fromRow, toRow, pixels, fromRow * w, true);
+		});
 
-			for (int j = 0; j < palette.length; j++) {
-				int[] pal = getRGB(palette[j]);
-				double d = dist3d(pix, pal);
+		StageEvent.finish(timer, StageListener.Stage.PIXELS, pixels.length);
+		return pixels;
+	}
 
-				if (d < minDist) {
-					minDist = d;
-					minIndex = j;
+	// reads rows [fromRow, toRow) of img into pixels starting at offset, converted to linear RGB if
+	// linear is set and left as sRGB otherwise; the common raster layouts are read straight from
+	// their data buffer, and everything else goes through getRGB
+	static void readRows(BufferedImage img, int fromRow, int toRow, int[] pixels, int offset, boolean linear) {
+		int w = img.getWidth();
+		WritableRaster raster = img.getRaster();
+		SampleModel sm = raster.getSampleModel();
+
+		// conversion for each 8-bit channel value
+		int[] channel = linear ? SRGB_TO_LINEAR : IDENTITY;
+
+		// position of the image's top-left pixel in the sample model, for images that share a
+		// larger raster (see BufferedImage.getSubimage)
+		int x0 = -raster.getSampleModelTranslateX();
+		int y0 = -raster.getSampleModelTranslateY();
+
+		switch (img.getType()) {
+			case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+				var packed = (SinglePixelPackedSampleModel) sm;
+				var db = (DataBufferInt) raster.getDataBuffer();
+				int[] data = db.getData();
+				int scan = packed.getScanlineStride();
+				int alpha = img.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+
+				for (int y = fromRow; y < toRow; y++) {
+					int src = db.getOffset() + ((y + y0) * scan) + x0;
+					int dst = offset + ((y - fromRow) * w);
+
+					for (int x = 0; x < w; x++) {
+						int color = data[src + x];
+
+						pixels[dst + x] = (alpha | (color & 0xFF000000))
+							| channel[color >> 16 & 0xFF] << 16
+							| channel[color >> 8 & 0xFF] << 8
+							| channel[color & 0xFF];
+					}
+				}
+			}
+			case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+				var interleaved = (ComponentSampleModel) sm;
+				var db = (DataBufferByte) raster.getDataBuffer();
+				byte[] data = db.getData();
+				int scan   = interleaved.getScanlineStride();
+				int stride = interleaved.getPixelStride();
+				int[] band = interleaved.getBandOffsets();
+				boolean hasAlpha = band.length > 3;
+
+				for (int y = fromRow; y < toRow; y++) {
+					int src = db.getOffset() + ((y + y0) * scan) + (x0 * stride);
+					int dst = offset + ((y - fromRow) * w);
+
+					for (int x = 0; x < w; x++, src += stride) {
+						int a = hasAlpha ? data[src + band[3]] & 0xFF : 0xFF;
+
+						pixels[dst + x] = a << 24
+							| channel[data[src + band[0]] & 0xFF] << 16
+							| channel[data[src + band[1]] & 0xFF] << 8
+							| channel[data[src + band[2]] & 0xFF];
+					}
 				}
 			}
+			case BufferedImage.TYPE_BYTE_GRAY -> {
+				var interleaved = (ComponentSampleModel) sm;
+				var db = (DataBufferByte) raster.getDataBuffer();
+				byte[] data = db.getData();
+				int scan   = interleaved.getScanlineStride();
+				int stride = interleaved.getPixelStride();
+
+				// the gray color space is not sRGB, so let the color model convert each level once;
+				// the data-element overload is the one getRGB uses, and the only one that matches it
+				ColorModel cm = img.getColorModel();
+				int[] levels = new int[256];
+				byte[] level = new byte[1];
+				for (int i = 0; i < levels.length; i++) {
+					level[0] = (byte) i;
+					int rgb = cm.getRGB(level);
+					levels[i] = linear ? gammaExpand(rgb) : rgb;
+				}
 
-			quantized[i] = palette[minIndex];
+				for (int y = fromRow; y < toRow; y++) {
+					int src = db.getOffset() + ((y + y0) * scan) + (x0 * stride);
+					int dst = offset + ((y - fromRow) * w);
+
+					for (int x = 0; x < w; x++, src += stride) {
+						pixels[dst + x] = levels[data[src] & 0xFF];
+					}
+				}
+			}
+			default -> {
+				// get colors of all pixels in the band
+				img.getRGB(
+					0, fromRow, w, toRow - fromRow,	// x, y, w, h
+					pixels, offset, w				// target array, offset, scan size
+				);
+
+				// convert from sRGB to linear RGB
+				if (linear) {
+					gammaExpand(pixels, offset, offset + ((toRow - fromRow) * w));
+				}
+			}
 		}
+	}
 
-		return quantized;
+	// maps pixels onto palette and builds the kind of image chosen in options
+	private static BufferedImage quantize(int[] pixels, int w, int h, int[] palette, QuantizeOptions options) {
+		PaletteMapper mapper = options.lookup().createMapper(palette);
+
+		if (options.output() == QuantizeOptions.Output.INDEXED && palette.length <= 256) {
+			return createIndexedImage(pixels, w, h, palette, mapper, options);
+		}
+
+		return wrapPixels(quantize(pixels, w, h, mapper, options), w, h, options.pool());
 	}
 
-	private static double dist3d(int[] p1, int[] p2) {
-		int dx = (p2[0] - p1[0]) * (p2[0] - p1[0]);
-		int dy = (p2[1] - p1[1]) * (p2[1] - p1[1]);
-		int dz = (p2[2] - p1[2]) * (p2[2] - p1[2]);
+	// maps pixels onto palette, writing palette indices straight into the raster of a
+	// TYPE_BYTE_BINARY image (up to 16 colors) or a TYPE_BYTE_INDEXED one
+	private static BufferedImage createIndexedImage(
+		int[] pixels, int w, int h, int[] palette, PaletteMapper mapper, QuantizeOptions options
+	) {
+		var timer = StageEvent.start();
+
+		byte[] r = new byte[palette.length], g = new byte[palette.length], b = new byte[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			int color = gammaCompress(palette[i]);
+			r[i] = (byte) (color >> 16);
+			g[i] = (byte) (color >> 8);
+			b[i] = (byte) color;
+		}
+
+		int bits = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+		var cm = new IndexColorModel(bits, palette.length, r, g, b);
+		var res = new BufferedImage(w, h, bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, cm);
 
-		return Math.sqrt(dx + dy + dz);
+		byte[] data = ((DataBufferByte) res.getRaster().getDataBuffer()).getData();
+		int stride = ((bits * w) + 7) / 8;
+
+		// dithering picks palette colors itself, which only need to be turned back into indices; the
+		// mapper's indexOf may not give a color's own index, so an exact index is used for that
+		PaletteMapper indexer;
+		int[] colors;
+		if (options.dither() == QuantizeOptions.Dither.NONE) {
+			indexer = mapper;
+			colors = pixels;
+		} else {
+			indexer = mapper instanceof PaletteIndex ? mapper : new PaletteIndex(palette);
+			colors = options.dither() == QuantizeOptions.Dither.FLOYD_STEINBERG
+				? Dithering.floydSteinberg(pixels, w, h, mapper, options.pool())
+				: Dithering.ordered(pixels, w, h, mapper, options.pool());
+		}
+
+		// rows start on byte boundaries, so tasks of whole rows never share a byte
+		forRange(options.pool(), h, Math.max(1, PARALLEL_THRESHOLD / w), (fromRow, toRow) -> {
+			for (int y = fromRow; y < toRow; y++) {
+				int src = y * w;
+				int dst = y * stride;
+
+				if (bits == 8) {
+					for (int x = 0; x < w; x++) {
+						data[dst + x] = (byte) indexer.indexOf(colors[src + x]);
+					}
+				} else {
+					// pixels are packed from the high bits of each byte down
+					int packed = 0, filled = 0;
+					for (int x = 0; x < w; x++) {
+						packed = (packed << bits) | indexer.indexOf(colors[src + x]);
+						filled += bits;
+
+						if (filled == 8) {
+							data[dst++] = (byte) packed;
+							packed = 0;
+							filled = 0;
+						}
+					}
+					if (filled > 0) {
+						data[dst] = (byte) (packed << (8 - filled));
+					}
+				}
+			}
+		});
+
+		StageEvent.finish(timer, StageListener.Stage.MAPPING, pixels.length);
+		return res;
 	}
 
-	// uses median cut algorithm to reduce number of colors
+	// maps pixels onto the palette, with the dithering mode and pool chosen in options
+	private static int[] quantize(int[] pixels, int w, int h, PaletteMapper mapper, QuantizeOptions options) {
+		ForkJoinPool pool = options.pool();
+		var timer = StageEvent.start();
+
+		int[] quantized = switch (options.dither()) {
+			case FLOYD_STEINBERG -> Dithering.floydSteinberg(pixels, w, h, mapper, pool);
+			case ORDERED -> Dithering.ordered(pixels, w, h, mapper, pool);
+			case NONE -> {
+				int[] res = new int[pixels.length];
+
+				forRange(pool, pixels.length, (from, to) -> {
+					for (int i = from; i < to; i++) {
+						res[i] = mapper.nearest(pixels[i]);
+					}
+				});
+
+				yield res;
+			}
+		};
+
+		StageEvent.finish(timer, StageListener.Stage.MAPPING, pixels.length);
+		return quantized;
+	}
+
+	// builds a palette of at most numColors colors with the engine chosen in options
 	public static int[] getPalette(int[] pixels, int numColors) throws IllegalArgumentException {
+		return getPalette(pixels, numColors, new QuantizeOptions());
+	}
+
+	/**
+	 * Builds a palette of at most {@code numColors} colors with the engine chosen in
+	 * {@code options}. With {@linkplain QuantizeOptions#sampling(QuantizeOptions.Sampling)
+	 * pyramid sampling}, {@code pixels} is treated as a single row, since its dimensions are not
+	 * known.
+	 * 
+	 * @param pixels the pixels, in linear RGB
+	 * @param numColors the maximum number of colors in the palette
+	 * @param options palette engine, sampling, cache, and pool
+	 * @return the palette, in linear RGB
+	 * @throws IllegalArgumentException if {@code numColors} is not positive
+	 */
+	public static int[] getPalette(int[] pixels, int numColors, QuantizeOptions options)
+			throws IllegalArgumentException {
 		// check arguments
 		if (pixels == null)
 			throw new IllegalArgumentException("img must not be null");
-		if (!isPowerOf2(numColors))
-			throw new IllegalArgumentException("numColors must be a power of 2");
 
-		return medianCut(pixels, numColors);
+		return getPalette(pixels, pixels.length, 1, numColors, options);
 	}
 
-	private static boolean isPowerOf2(int i) {
-		return i > 0 && (i & (i - 1)) == 0;
+	// same, for pixels laid out as a w x h image, which sampling strategies such as PYRAMID need
+	static int[] getPalette(int[] pixels, int w, int h, int numColors, QuantizeOptions options) {
+		if (numColors < 1)
+			throw new IllegalArgumentException("numColors must be positive");
+
+		var timer = StageEvent.start();
+
+		// the cache is keyed by the sample, which is all the palette depends on
+		int[] sample = PaletteSampler.sample(pixels, w, h, options.sampling(), options.sampleBudget());
+
+		PaletteCache cache = options.cache();
+		int[] palette = cache != null
+			? cache.get(sample, numColors, options, () -> buildPalette(sample, numColors, options))
+			: buildPalette(sample, numColors, options);
+
+		StageEvent.finish(timer, StageListener.Stage.PALETTE, pixels.length);
+		return palette;
 	}
 
-	// iterative median cut algorithm
-	private static int[] medianCut(int[] colors, int nBuckets) {
-		int mainChannel = getGreatestRangeChannel(colors);
+	private static int[] buildPalette(int[] pixels, int numColors, QuantizeOptions options) {
+		boolean histogram = options.engine() == QuantizeOptions.Engine.MEDIAN_CUT || options.refineIterations() > 0;
+		ColorHistogram hist = histogram ? getHistogram(pixels, options.pool()) : null;
 
-		// get comparator to sort by main channel
-		Comparator<Integer> compareByMain = switch (mainChannel) {
-			case 0 -> compareByMain = (c1, c2) -> red(c1) - red(c2);
-			case 1 -> compareByMain = (c1, c2) -> green(c1) - green(c2);
-			case 2 -> compareByMain = (c1, c2) -> blue(c1) - blue(c2);
-			default -> null;
+		int[] palette = switch (options.engine()) {
+			case MEDIAN_CUT -> new MedianCut(hist).palette(numColors);
+			case OCTREE -> {
+				var octree = new OctreeQuantizer(numColors);
+				octree.add(pixels, 0, pixels.length);
+				yield octree.palette();
+			}
 		};
 
-		int[] sorted = IntStream.of(colors)
-			.boxed()
-			.sorted(compareByMain)
-			.mapToInt(i -> i)
-			.toArray();
+		return refine(hist, palette, pixels.length, options);
+	}
 
-		final int chunkSize = sorted.length / nBuckets;
+	// refines palette with k-means over hist if options ask for it
+	static int[] refine(ColorHistogram hist, int[] palette, long nPixels, QuantizeOptions options) {
+		if (options.refineIterations() == 0 || palette.length == 0) return palette;
 
-		// divide sorted colors into buckets
-		int[][] buckets = new int[nBuckets][];
+		var timer = StageEvent.start();
+		int[] res = KMeansRefiner.refine(
+			hist, palette, options.refineIterations(), options.refineTolerance(), options.pool()
+		).palette();
+		StageEvent.finish(timer, StageListener.Stage.REFINE, nPixels);
 
-		for (int i = 0; i < buckets.length; i++) {
-			int start  = i * chunkSize;
-			// if on last bucket, fill all remaining colors
-			int end    = i == nBuckets - 1 ? sorted.length : start + chunkSize;
-			buckets[i] = Arrays.copyOfRange(sorted, start, end);
+		return res;
+	}
+
+	/**
+	 * Builds one palette for each entry of {@code counts}. With the median cut engine, the
+	 * histogram is built and the boxes are split only once, for the largest count; each smaller
+	 * palette comes from the first splits of that same sequence and is identical to what
+	 * {@link #getPalette(int[], int, QuantizeOptions)} would return for its count. The octree
+	 * engine builds each palette separately. With a {@linkplain QuantizeOptions#cache(PaletteCache)
+	 * cache}, each count is looked up and stored on its own, sharing entries with
+	 * {@code getPalette}; the palettes are only built if some count is missing.
+	 * 
+	 * @param pixels the pixels, in linear RGB
+	 * @param counts the maximum number of colors for each palette
+	 * @param options palette engine, refinement, sampling, cache, and pool
+	 * @return the palettes, keyed by color count in the order the counts were given
+	 * @throws IllegalArgumentException if any count is not positive
+	 */
+	public static Map<Integer, int[]> getPalettes(int[] pixels, int[] counts, QuantizeOptions options)
+			throws IllegalArgumentException {
+		if (pixels == null)
+			throw new IllegalArgumentException("img must not be null");
+
+		return getPalettes(pixels, pixels.length, 1, counts, options);
+	}
+
+	private static Map<Integer, int[]> getPalettes(int[] pixels, int w, int h, int[] counts, QuantizeOptions options) {
+		for (int n : counts) {
+			if (n < 1)
+				throw new IllegalArgumentException("numColors must be positive");
 		}
 
-		// channel averages for each bucket
-		int[][] averages = new int[nBuckets][N_CHANNELS];
+		var res = new LinkedHashMap<Integer, int[]>();
 
-		// get averages for each bucket
-		for (int i = 0; i < buckets.length; i++) {
-			for (int color : buckets[i]) {
-				int[] rgb = getRGB(color);
+		if (options.engine() == QuantizeOptions.Engine.MEDIAN_CUT) {
+			var timer = StageEvent.start();
+			int[] sample = PaletteSampler.sample(pixels, w, h, options.sampling(), options.sampleBudget());
 
-				averages[i][0] += rgb[0];
-				averages[i][1] += rgb[1];
-				averages[i][2] += rgb[2];
+			// every palette is built in one pass, the first time a count is not in the cache
+			int[][][] built = new int[1][][];
+			Supplier<int[][]> buildAll = () -> {
+				if (built[0] == null) {
+					built[0] = buildPalettes(sample, counts, options);
+				}
+				return built[0];
+			};
+
+			PaletteCache cache = options.cache();
+			for (int i = 0; i < counts.length; i++) {
+				int k = i;
+				res.put(counts[i], cache != null
+					? cache.get(sample, counts[i], options, () -> buildAll.get()[k])
+					: buildAll.get()[k]);
+			}
+			StageEvent.finish(timer, StageListener.Stage.PALETTE, pixels.length);
+		} else {
+			for (int n : counts) {
+				res.put(n, getPalette(pixels, w, h, n, options));
 			}
-
-			// same thing here
-			averages[i][0] /= chunkSize;
-			averages[i][1] /= chunkSize;
-			averages[i][2] /= chunkSize;
 		}
 
-		return Stream.of(averages)
-			.flatMapToInt(rgb -> IntStream.of(getColor(rgb)))
-			.toArray();
+		return res;
 	}
 
-	// Returns 0 for red, 1 for green, or 2 for blue
-	private static int getGreatestRangeChannel(int[] colors) {
-		// color range (min -> max) for each channel
-		// even indexes are minimums; odd indexes are maximums
-		int[] minmax = {
-			Integer.MAX_VALUE, 0,	// red
-			Integer.MAX_VALUE, 0,	// green
-			Integer.MAX_VALUE, 0	// blue
-		};
+	// median cut palettes for every entry of counts, in the same order, from one histogram and
+	// one sequence of splits
+	private static int[][] buildPalettes(int[] pixels, int[] counts, QuantizeOptions options) {
+		ColorHistogram hist = getHistogram(pixels, options.pool());
+		int[][] palettes = new MedianCut(hist).palettes(counts);
 
-		for (int color : colors) {
-			int[] channels = getRGB(color);
+		for (int i = 0; i < counts.length; i++) {
+			palettes[i] = refine(hist, palettes[i], pixels.length, options);
+		}
 
-			// for each channel in the current color, check if it is a new min/max
-			for (int i = 0, j = 0; i < N_CHANNELS && j < minmax.length; i++, j += 2) {
-				int chnl = channels[i];
+		return palettes;
+	}
 
-				// check for new min
-				if (chnl < minmax[j]) {
-					minmax[j] = chnl;
-				}
-				// check for new max
-				if (chnl > minmax[j + 1]) {
-					minmax[j + 1] = chnl;
-				}
+	static ColorHistogram getHistogram(int[] pixels, ForkJoinPool pool) {
+		// one histogram per chunk; chunks are kept few since each histogram is fairly large
+		int nChunks = pool == null
+			? 1
+			: Math.max(1, Math.min(pool.getParallelism(), pixels.length / PARALLEL_THRESHOLD));
+		int chunkSize = (pixels.length + nChunks - 1) / nChunks;
+
+		var hists = new ColorHistogram[nChunks];
+
+		forRange(pool, nChunks, 1, (fromChunk, toChunk) -> {
+			for (int c = fromChunk; c < toChunk; c++) {
+				hists[c] = new ColorHistogram();
+				hists[c].addAll(pixels, c * chunkSize, Math.min(pixels.length, (c + 1) * chunkSize));
 			}
+		});
+
+		for (int c = 1; c < nChunks; c++) {
+			hists[0].merge(hists[c]);
 		}
 
-		int[] ranges = {
-			minmax[1] - minmax[0],	// red range
-			minmax[3] - minmax[2],	// green range
-			minmax[5] - minmax[4]	// blue range
-		};
+		return hists[0];
+	}
 
-		// max range value
-		int max = Math.max(ranges[0], Math.max(ranges[1], ranges[2]));
-		
-		// return max range index
-		for (int i = 0; i < N_CHANNELS; i++) {
-			if (ranges[i] == max) return i;
-		}
-		return 0;
+	/**
+	 * Resizes {@code img} with the {@linkplain Resampler.Filter#LANCZOS Lanczos} filter. See
+	 * {@link Resampler} for other filters and for splitting the work across a pool.
+	 * 
+	 * @param img the image to resize
+	 * @param width the width of the result in pixels
+	 * @param height the height of the result in pixels
+	 * @return a new {@code TYPE_INT_ARGB} image
+	 * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+	 */
+	public static BufferedImage resize(BufferedImage img, int width, int height) throws IllegalArgumentException {
+		return resize(img, width, height, Resampler.Filter.LANCZOS);
+	}
+
+	/**
+	 * Resizes {@code img} with the given filter.
+	 * 
+	 * @param img the image to resize
+	 * @param width the width of the result in pixels
+	 * @param height the height of the result in pixels
+	 * @param filter the filter to resample with
+	 * @return a new {@code TYPE_INT_ARGB} image
+	 * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+	 */
+	public static BufferedImage resize(BufferedImage img, int width, int height, Resampler.Filter filter)
+			throws IllegalArgumentException {
+		if (img == null) return null;
+
+		var timer = StageEvent.start();
+		var res = new Resampler().filter(filter).resize(img, width, height);
+		StageEvent.finish(timer, StageListener.Stage.RESIZE, (long) img.getWidth() * img.getHeight());
+
+		return res;
 	}
 
 	public static BufferedImage grayscale(BufferedImage img) {
 		if (img == null) return null;
 
-		int[] pixels  = getPixels(img);
-		byte[] values = new byte[pixels.length];
+		var timer = StageEvent.start();
+		var res = new PixelPipeline().expand().gray().compress().apply(img);
+		StageEvent.finish(timer, StageListener.Stage.GRAY, (long) img.getWidth() * img.getHeight());
 
-		for (int i = 0; i < values.length; i++) {
-			values[i] = getGray(pixels[i]);
-		}
+		return res;
+	}
+
+	/**
+	 * Converts the pixels of {@code src} to grayscale, reading and writing the buffers band by
+	 * band with no full-size intermediate copies, so buffers of any size can be converted.
+	 * 
+	 * @param src the buffer to read
+	 * @param dst the buffer to write, of the same size as {@code src}; usually {@code GRAY}. An
+	 *   {@code ARGB} buffer keeps each pixel's alpha. May be {@code src} itself
+	 * @return {@code dst}
+	 * @throws IllegalArgumentException if the buffers differ in size
+	 * @throws IllegalStateException if either buffer is closed
+	 */
+	public static PixelBuffer grayscale(PixelBuffer src, PixelBuffer dst)
+			throws IllegalArgumentException, IllegalStateException {
+		checkSameSize(src, dst);
+
+		var timer = StageEvent.start();
+		new PixelPipeline().expand().gray().compress().apply(src, dst);
+		StageEvent.finish(timer, StageListener.Stage.GRAY, src.size());
+
+		return dst;
+	}
+
+	/**
+	 * Quantizes the pixels of {@code src}, reading and writing the buffers band by band with no
+	 * full-size intermediate copies, so buffers of any size can be quantized. The palette is built
+	 * straight from every pixel of {@code src}; the sampling, dithering, output and cache settings
+	 * of {@code options} are not used.
+	 * 
+	 * @param src the buffer to read
+	 * @param numColors the maximum number of colors in the result
+	 * @param options palette engine, refinement, lookup mode, and pool
+	 * @param dst the buffer to write, of the same size as {@code src}; usually {@code ARGB}. May
+	 *   be {@code src} itself
+	 * @return {@code dst}
+	 * @throws IllegalArgumentException if the buffers differ in size or {@code numColors} is not
+	 *   positive
+	 * @throws IllegalStateException if either buffer is closed
+	 */
+	public static PixelBuffer quantize(PixelBuffer src, int numColors, QuantizeOptions options, PixelBuffer dst)
+			throws IllegalArgumentException, IllegalStateException {
+		checkSameSize(src, dst);
+		if (numColors < 1)
+			throw new IllegalArgumentException("numColors must be positive");
+
+		var timer = StageEvent.start();
+
+		boolean histogram = options.engine() == QuantizeOptions.Engine.MEDIAN_CUT || options.refineIterations() > 0;
+		ColorHistogram hist = histogram ? getHistogram(src, options.pool()) : null;
+
+		int[] palette = switch (options.engine()) {
+			case MEDIAN_CUT -> new MedianCut(hist).palette(numColors);
+			case OCTREE -> {
+				var octree = new OctreeQuantizer(numColors);
+				int[] band = new int[BUFFER_BAND_PIXELS];
+
+				for (long i = 0; i < src.size(); i += band.length) {
+					int n = (int) Math.min(band.length, src.size() - i);
+					src.getARGB(i, band, 0, n);
+					gammaExpand(band, 0, n);
+					octree.add(band, 0, n);
+				}
+				yield octree.palette();
+			}
+		};
 
-		return createGrayscaleImage(values, img.getWidth(), img.getHeight());
+		palette = refine(hist, palette, src.size(), options);
+		StageEvent.finish(timer, StageListener.Stage.PALETTE, src.size());
+
+		timer = StageEvent.start();
+		new PixelPipeline()
+			.expand()
+			.map(options.lookup().createMapper(palette))
+			.compress()
+			.pool(options.pool())
+			.apply(src, dst);
+		StageEvent.finish(timer, StageListener.Stage.MAPPING, src.size());
+
+		return dst;
 	}
 
-	private static byte getGray(int color) {
-		int[] rgb = getRGB(color);
-		float[] comps = new float[N_CHANNELS];
+	// histogram of the pixels of buf in linear RGB, one histogram per chunk of bands as in
+	// getHistogram(int[], ForkJoinPool)
+	private static ColorHistogram getHistogram(PixelBuffer buf, ForkJoinPool pool) {
+		long nBands = (buf.size() + BUFFER_BAND_PIXELS - 1) / BUFFER_BAND_PIXELS;
+		int nChunks = pool == null
+			? 1
+			: (int) Math.max(1, Math.min(pool.getParallelism(), buf.size() / PARALLEL_THRESHOLD));
+		long chunkBands = (nBands + nChunks - 1) / nChunks;
+
+		var hists = new ColorHistogram[nChunks];
+
+		forRange(pool, nChunks, 1, (fromChunk, toChunk) -> {
+			int[] band = new int[BUFFER_BAND_PIXELS];
+
+			for (int c = fromChunk; c < toChunk; c++) {
+				hists[c] = new ColorHistogram();
+
+				long end = Math.min(buf.size(), (c + 1) * chunkBands * BUFFER_BAND_PIXELS);
+				for (long i = c * chunkBands * BUFFER_BAND_PIXELS; i < end; i += band.length) {
+					int n = (int) Math.min(band.length, end - i);
+					buf.getARGB(i, band, 0, n);
+					gammaExpand(band, 0, n);
+					hists[c].addAll(band, 0, n);
+				}
+			}
+		});
 
-		// convert from range [0, 255] to [0, 1]
-		comps[0] = rgb[0] / 255f;
-		comps[1] = rgb[1] / 255f;
-		comps[2] = rgb[2] / 255f;
-		
-		// multiply by weights
-		comps[0] *= 0.2126;
-		comps[1] *= 0.7152;
-		comps[2] *= 0.0722;
+		for (int c = 1; c < nChunks; c++) {
+			hists[0].merge(hists[c]);
+		}
+
+		return hists[0];
+	}
+
+	private static void checkSameSize(PixelBuffer src, PixelBuffer dst) {
+		if (src.width() != dst.width() || src.height() != dst.height())
+			throw new IllegalArgumentException("src and dst must have the same dimensions");
+	}
 
-		// calculate sum
-		float y = comps[0] + comps[1] + comps[2];
+	static byte getGray(int color) {
+		// same as (r / 255 * 0.2126 + g / 255 * 0.7152 + b / 255 * 0.0722) * 255 in float, with
+		// each weighted channel looked up instead of computed
+		float y = GRAY_R[color >> 16 & 0xFF] + GRAY_G[color >> 8 & 0xFF] + GRAY_B[color & 0xFF];
 
 		return (byte) (y * 255);
 	}
 
-	public static List<String> toASCII(BufferedImage img) {
-		// TODO: make images keep aspect ratio
+	// converts pixels[from, to) to gray levels, written to dst starting at offset
+	static void getGray(int[] pixels, int from, int to, byte[] dst, int offset) {
+		KERNELS.getGray(pixels, from, to, dst, offset);
+	}
 
-		// window measurements in pixels
-		final int SCREEN_WIDTH    = 1920;
-		final int SCREEN_HEIGHT   = 1080;
-		final int SCROLLBAR_WIDTH = 24;
+	/**
+	 * Renders {@code img} as lines of text with the default {@link AsciiRenderer} settings:
+	 * {@value AsciiRenderer#DEFAULT_COLUMNS} characters per line, keeping the image's aspect ratio.
+	 * 
+	 * @param img the image to render
+	 * @return one string per line
+	 */
+	public static List<String> toASCII(BufferedImage img) {
+		return new AsciiRenderer().render(img);
+	}
 
-		// font size in pixels
-		final int FONT_HEIGHT = 16;
-		final int FONT_WIDTH  = FONT_HEIGHT / 2;
-		
-		// number of characters per line and number of lines in window
-		final int LINE_LENGTH = (SCREEN_WIDTH - SCROLLBAR_WIDTH) / FONT_WIDTH;
-		final int N_LINES     = SCREEN_HEIGHT / FONT_HEIGHT;
-
-		// palette used for ASCII raytracing spheres: " .:;~=#OB8%&"
-		String palette = " .,:=#$@";
-
-		int w            = img.getWidth();
-		int h            = img.getHeight();
-		int sampleWidth  = w / LINE_LENGTH;
-		int sampleHeight = (h / N_LINES) / 2;
-
-		var grayscale = grayscale(quantize(img, palette.length()));
-		int[] pixels = getPixels(grayscale);
-		byte[][] values = new byte[h][w];
-
-		// map pixel grayscale values to 2d array
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				values[y][x] = getGray(pixels[(y * w) + x]);
-			}
-		}
+	/**
+	 * Renders {@code img} as lines of text on a grid of the given size. Each character stands for
+	 * the average luminance of its cell.
+	 * 
+	 * @param img the image to render
+	 * @param columns the number of characters per line
+	 * @param rows the number of lines
+	 * @return one string per line
+	 * @throws IllegalArgumentException if {@code columns} or {@code rows} is less than 1
+	 */
+	public static List<String> toASCII(BufferedImage img, int columns, int rows) throws IllegalArgumentException {
+		if (rows < 1)
+			throw new IllegalArgumentException("rows must be positive");
 
-		var ascii = new ArrayList<String>(N_LINES);
+		return new AsciiRenderer().columns(columns).rows(rows).render(img);
+	}
 
-		Point sample = new Point();
-		for (int y = 0; y < N_LINES; y++) {
-			var line = new StringBuilder(LINE_LENGTH);
+	/**
+	 * Renders {@code buf} as lines of text with the default {@link AsciiRenderer} settings.
+	 * 
+	 * @param buf the buffer to render
+	 * @return one string per line
+	 */
+	public static List<String> toASCII(PixelBuffer buf) {
+		return new AsciiRenderer().render(buf);
+	}
 
-			for (int x = 0; x < LINE_LENGTH; x++) {
-				sample.y = y * sampleHeight;
-				sample.x = x * sampleWidth;
-				byte val = values[sample.y >= h ? h - 1 : sample.y][sample.x];
-				int luminance = Byte.toUnsignedInt(val) / 32;
-				line.append(palette.charAt(luminance));
-			}
+	// runs body over [0, length), split into chunks on pool if there is one
+	static void forRange(ForkJoinPool pool, int length, RangeAction body) {
+		forRange(pool, length, PARALLEL_THRESHOLD, body);
+	}
 
-			ascii.add(line.toString());
+	// same, with chunks of no fewer than threshold elements
+	static void forRange(ForkJoinPool pool, int length, int threshold, RangeAction body) {
+		if (pool == null || length <= threshold) {
+			body.apply(0, length);
+		} else {
+			pool.invoke(new RangeTask(body, 0, length, threshold));
 		}
+	}
 
-		return ascii;
+	@FunctionalInterface
+	interface RangeAction {
+		void apply(int from, int to);
 	}
 
-	// private static byte get2dSubarrayAverage(byte[][] original, Point from, Point to) {
-	// 	byte[][] subarr = new byte[to.y - from.y][];
-	// 	for (int i = from.y; i < to.y; i++) {
-	// 		subarr[i - from.y] = Arrays.copyOfRange(original[i], from.x, to.x);
-	// 	}
+	private static final class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-	// 	int average = 0;
-	// 	for (int r = 0; r < subarr.length; r++) {
-	// 		for (int c = 0; c < subarr[r].length; c++) {
-	// 			average += Byte.toUnsignedInt(subarr[r][c]);
-	// 		}
-	// 	}
+		private final RangeAction body;
+		private final int from, to, threshold;
 
-	// 	return (byte) (average / (subarr.length * subarr[0].length));
-	// }
+		RangeTask(RangeAction body, int from, int to, int threshold) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				body.apply(from, to);
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(
+				new RangeTask(body, from, mid, threshold),
+				new RangeTask(body, mid, to, threshold)
+			);
+		}
+	}
 
 	/**
 	 * Converts a color in the (nonlinear) sRGB color space to a linear representation
-	 * of the color via gamma expansion
+	 * of the color via gamma expansion. The alpha channel is left untouched.
 	 * 
 	 * @param color a color in the sRGB color space
 	 * @return the color in the linear RGB color space
@@ -409,33 +959,16 @@ public final class Images {
 	 *   Converting color to grayscale
 	 * </a>
 	 */
-	private static int gammaExpand(int color) {
-		int[] rgb = getRGB(color);
-		float[] comps = new float[N_CHANNELS];
-
-		// convert from range [0, 255] to [0, 1]
-		comps[0] = rgb[0] / 255f;
-		comps[1] = rgb[1] / 255f;
-		comps[2] = rgb[2] / 255f;
-
-		for (int i = 0; i < N_CHANNELS; i++) {
-			if (comps[i] <= 0.04045) {
-				comps[i] /= 12.92;
-			} else {
-				comps[i] = (float) Math.pow((comps[i] + 0.055) / 1.055, 2.4);
-			}
-		}
-
-		return getColor(new int[]{
-			(int) (comps[0] * 255),
-			(int) (comps[1] * 255),
-			(int) (comps[2] * 255)
-		});
+	static int gammaExpand(int color) {
+		return (color & 0xFF000000)
+			| SRGB_TO_LINEAR[color >> 16 & 0xFF] << 16
+			| SRGB_TO_LINEAR[color >> 8 & 0xFF] << 8
+			| SRGB_TO_LINEAR[color & 0xFF];
 	}
 
 	/**
 	 * Converts a color in the linear RGB color space to a nonlinear representation
-	 * of the color via gamma compression
+	 * of the color via gamma compression. The alpha channel is left untouched.
 	 * 
 	 * @param color a color in the linear sRGB color space
 	 * @return the color in the sRGB color space
@@ -443,69 +976,94 @@ public final class Images {
 	 *   Converting color to grayscale
 	 * </a>
 	 */
-	private static int gammaCompress(int color) {
-		int[] rgb = getRGB(color);
-		float[] comps = new float[N_CHANNELS];
-
-		// convert from range [0, 255] to [0, 1]
-		comps[0] = rgb[0] / 255f;
-		comps[1] = rgb[1] / 255f;
-		comps[2] = rgb[2] / 255f;
-
-		for (int i = 0; i < N_CHANNELS; i++) {
-			if (comps[i] <= 0.0031308) {
-				comps[i] *= 12.92;
+	static int gammaCompress(int color) {
+		return (color & 0xFF000000)
+			| LINEAR_TO_SRGB[color >> 16 & 0xFF] << 16
+			| LINEAR_TO_SRGB[color >> 8 & 0xFF] << 8
+			| LINEAR_TO_SRGB[color & 0xFF];
+	}
+
+	// gammaExpand for every pixel in pixels[from, to), in place
+	static void gammaExpand(int[] pixels, int from, int to) {
+		KERNELS.gammaExpand(pixels, from, to);
+	}
+
+	// gammaCompress for every pixel in pixels[from, to), in place
+	static void gammaCompress(int[] pixels, int from, int to) {
+		KERNELS.gammaCompress(pixels, from, to);
+	}
+
+	// gammaCompress for every gray level in values[from, to), in place
+	static void gammaCompress(byte[] values, int from, int to) {
+		KERNELS.gammaCompress(values, from, to);
+	}
+
+	static byte gammaCompress(byte channel) {
+		return (byte) LINEAR_TO_SRGB[Byte.toUnsignedInt(channel)];
+	}
+
+	// builds the lookup table for gammaExpand, one entry per 8-bit channel value
+	private static int[] createExpansionTable() {
+		int[] table = new int[256];
+
+		for (int i = 0; i < table.length; i++) {
+			// convert from range [0, 255] to [0, 1]
+			float val = i / 255f;
+
+			if (val <= 0.04045) {
+				val /= 12.92;
 			} else {
-				comps[i] = (float) ((1.055 * Math.pow(comps[i], 1 / 2.4)) - 0.055);
+				val = (float) Math.pow((val + 0.055) / 1.055, 2.4);
 			}
+
+			table[i] = (int) (val * 255);
 		}
 
-		return getColor(new int[]{
-			(int) (comps[0] * 255),
-			(int) (comps[1] * 255),
-			(int) (comps[2] * 255)
-		});
+		return table;
 	}
 
-	private static byte gammaCompress(byte channel) {
-		int u8 = Byte.toUnsignedInt(channel);
-		float val = u8 / 255f;
-		if (val <= 0.0031308) {
-			val *= 12.92;
-		} else {
-			val = (float) ((1.055 * Math.pow(val, 1 / 2.4)) - 0.055);
+	// builds the lookup table for gammaCompress, one entry per 8-bit channel value
+	private static int[] createCompressionTable() {
+		int[] table = new int[256];
+
+		for (int i = 0; i < table.length; i++) {
+			// convert from range [0, 255] to [0, 1]
+			float val = i / 255f;
+
+			if (val <= 0.0031308) {
+				val *= 12.92;
+			} else {
+				val = (float) ((1.055 * Math.pow(val, 1 / 2.4)) - 0.055);
+			}
+
+			table[i] = (int) (val * 255);
 		}
-		return (byte) (val * 255);
+
+		return table;
 	}
 
-	private static int getColor(int[] rgb) {
-		// shift bits into correct byte and mask out anything else
-		int r = rgb[0] << 16 & 0xFF0000;
-		int g = rgb[1] << 8 & 0x00FF00;
-		int b = rgb[2] & 0x0000FF;
+	private static int[] createIdentityTable() {
+		int[] table = new int[256];
 
-		// add max alpha value and OR everything together
-		return 0xFF000000 | r | g | b;
-	}
+		for (int i = 0; i < table.length; i++) {
+			table[i] = i;
+		}
 
-	private static int[] getRGB(int color) {
-		// shift bits to first byte and mask out anything else
-		return new int[]{
-            color >> 16 & 0xFF, // red
-            color >> 8 & 0xFF,  // green
-            color & 0xFF        // blue
-        };
+		return table;
 	}
 
-	private static int red(int color) {
-		return color >> 16 & 0xFF;
-	}
+	// builds one of the lookup tables for getGray, one entry per 8-bit channel value
+	private static float[] createGrayTable(double weight) {
+		float[] table = new float[256];
 
-	private static int green(int color) {
-		return color >> 8 & 0xFF;
-	}
+		for (int i = 0; i < table.length; i++) {
+			// convert from range [0, 255] to [0, 1], then multiply by the weight
+			float val = i / 255f;
+			val *= weight;
+
+			table[i] = val;
+		}
 
-	private static int blue(int color) {
-		return color & 0xFF;
+		return table;
 	}
 }
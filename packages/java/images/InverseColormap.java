@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lazily filled inverse colormap: a table indexed by a color with its channels reduced to 5 or
+ * 6 bits, holding the index of the palette color that the reduced color maps to.
+ * <p>
+ * The first lookup of a table cell searches the palette for the color at the center of the cell
+ * and stores the result; every later lookup of a color in the same cell is a single array load.
+ * Because all colors in a cell share one entry, the result can differ slightly from an exact
+ * {@link PaletteIndex} lookup. The table stays valid for as long as the palette does, so the same
+ * instance can be reused to map any number of images onto that palette.
+ * <p>
+ * Instances are safe to use from multiple threads once configured. Two threads filling the same
+ * cell at once both compute the same value, so the worst case is some duplicated work.
+ * <p>
+ * Misses are always counted, since each one already costs a palette search. Counting hits puts a
+ * shared counter on every lookup, which costs several times as much as the lookup itself, so it
+ * is off unless {@link #countHits(boolean)} turns it on.
+ */
+public final class InverseColormap implements PaletteMapper {
+	private final PaletteIndex index;
+	private final int bits;
+	private final int shift;
+
+	// palette index + 1 for each reduced color, or 0 if the cell has not been filled yet
+	private final int[] table;
+
+	private final LongAdder hits   = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private boolean countHits;
+
+	/**
+	 * Creates an empty inverse colormap over the given palette.
+	 *
+	 * @param palette the palette colors, as packed RGB ints
+	 * @param bits the number of bits kept per channel: 5 (a 32K-entry table) or 6 (256K entries)
+	 * @throws IllegalArgumentException if {@code bits} is not 5 or 6, or the palette is empty
+	 */
+	public InverseColormap(int[] palette, int bits) throws IllegalArgumentException {
+		this(new PaletteIndex(palette), bits);
+	}
+
+	/**
+	 * Creates an empty inverse colormap that fills its cells from an existing palette index.
+	 *
+	 * @param index the index used to fill table cells
+	 * @param bits the number of bits kept per channel: 5 (a 32K-entry table) or 6 (256K entries)
+	 * @throws IllegalArgumentException if {@code bits} is not 5 or 6
+	 */
+	public InverseColormap(PaletteIndex index, int bits) throws IllegalArgumentException {
+		if (bits != 5 && bits != 6)
+			throw new IllegalArgumentException("bits must be 5 or 6");
+
+		this.index = index;
+		this.bits  = bits;
+		this.shift = 8 - bits;
+		this.table = new int[1 << (3 * bits)];
+	}
+
+	/**
+	 * Sets whether lookups answered from the table are counted, for {@link #hits()} and
+	 * {@link #hitRate()}. Defaults to {@code false}. Set this before sharing the colormap between
+	 * threads.
+	 *
+	 * @param countHits whether to count hits
+	 * @return this object
+	 */
+	public InverseColormap countHits(boolean countHits) {
+		this.countHits = countHits;
+		return this;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public int colorAt(int i) {
+		return index.colorAt(i);
+	}
+
+	@Override
+	public int indexOf(int color) {
+		int key = ((color >> 16 & 0xFF) >> shift) << (2 * bits)
+			| ((color >> 8 & 0xFF) >> shift) << bits
+			| ((color & 0xFF) >> shift);
+
+		int entry = table[key];
+		if (entry != 0) {
+			if (countHits) hits.increment();
+			return entry - 1;
+		}
+
+		misses.increment();
+		int i = index.indexOf(cellCenter(key));
+		table[key] = i + 1;
+
+		return i;
+	}
+
+	/**
+	 * Returns the number of lookups answered straight from the table while hits were being
+	 * {@linkplain #countHits(boolean) counted}.
+	 *
+	 * @return the hit count
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that had to search the palette.
+	 *
+	 * @return the miss count
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of lookups answered straight from the table, or 0 if no lookups have
+	 * been made yet. Only meaningful if hits have been {@linkplain #countHits(boolean) counted}
+	 * since the counters were last reset.
+	 *
+	 * @return the hit rate, in the range [0, 1]
+	 */
+	public double hitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Resets the hit and miss counters. The table itself is kept.
+	 */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+	}
+
+	// the color in the middle of a table cell, used as the representative of every color in it
+	private int cellCenter(int key) {
+		int mask = (1 << bits) - 1;
+		int half = 1 << (shift - 1);
+
+		int r = ((key >> (2 * bits) & mask) << shift) | half;
+		int g = ((key >> bits & mask) << shift) | half;
+		int b = ((key & mask) << shift) | half;
+
+		return r << 16 | g << 8 | b;
+	}
+}
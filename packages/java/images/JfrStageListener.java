@@ -0,0 +1,61 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A {@link StageListener} that turns every stage into a Java Flight Recorder event named
+ * {@code images.Stage}, so that stage timings show up next to GC, allocation, and thread data in
+ * JDK Mission Control or {@code jfr print}. Events are only built while a recording that enables
+ * them is running.
+ *
+ * <pre>{@code
+ * Images.setStageListener(new JfrStageListener());
+ * // java -XX:StartFlightRecording:filename=run.jfr ...
+ * // jfr print --events images.Stage run.jfr
+ * }</pre>
+ */
+public final class JfrStageListener implements StageListener {
+	/**
+	 * Creates a listener that records flight recorder events.
+	 */
+	public JfrStageListener() {}
+
+	@Override
+	public void stageFinished(StageEvent event) {
+		var jfr = new StageRecord();
+		if (!jfr.isEnabled()) return;
+
+		jfr.stage = event.stage.name();
+		jfr.elapsed = event.nanos;
+		jfr.pixels = event.pixels;
+		jfr.allocated = event.allocatedBytes;
+		jfr.commit();
+	}
+
+	// the event is committed after the stage has finished, so its own duration is meaningless;
+	// the stage's time is in the elapsed field
+	@Name("images.Stage")
+	@Label("Image Stage")
+	@Category("Images")
+	@Description("A stage of image processing")
+	static final class StageRecord extends Event {
+		@Label("Stage")
+		String stage;
+
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+
+		@Label("Pixels")
+		long pixels;
+
+		@Label("Allocated")
+		@Description("Bytes allocated by the thread that ran the stage, or -1 if unknown")
+		@DataAmount(DataAmount.BYTES)
+		long allocated;
+	}
+}
@@ -0,0 +1,224 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Refines a palette with k-means (Lloyd's algorithm), starting from the palette an engine built.
+ * Set {@link QuantizeOptions#refineIterations(int)} to have every palette refined as it is built.
+ * <p>
+ * Each iteration assigns every occupied cell of a {@link ColorHistogram} to its nearest palette
+ * color, then moves each palette color to the exact average of the pixels assigned to it. Working
+ * on histogram cells rather than pixels makes an iteration cost the same for any image size. With
+ * a pool, the cells are split into chunks that each sum into their own arrays, which are merged
+ * once the chunks finish, so threads never write to shared memory. Refinement stops once no color
+ * moves further than the {@linkplain QuantizeOptions#refineTolerance(double) tolerance}, or after
+ * the maximum number of iterations.
+ * <p>
+ * Palette colors that no cell is assigned to are left where they were, so the palette keeps its
+ * size and order. Refined colors are opaque.
+ */
+public final class KMeansRefiner {
+	// fewest cells worth giving a chunk of their own
+	private static final int CHUNK_CELLS = 1 << 10;
+
+	private KMeansRefiner() {}
+
+	/**
+	 * Refines {@code palette} over the colors of {@code pixels}.
+	 *
+	 * @param pixels the pixels the palette is fitted to, in linear RGB
+	 * @param palette the palette to start from, which is not modified
+	 * @param maxIterations the most iterations to run
+	 * @param tolerance the distance, in linear RGB with channels from 0 to 255, under which a
+	 *   color is considered to have stopped moving
+	 * @param pool the pool to split iterations across, or {@code null} to run on the calling thread
+	 * @return the refined palette, with the number of iterations run and the time taken
+	 * @throws IllegalArgumentException if {@code palette} is empty, {@code maxIterations} is
+	 *   negative, or {@code tolerance} is negative or not a number
+	 */
+	public static Result refine(int[] pixels, int[] palette, int maxIterations, double tolerance, ForkJoinPool pool)
+			throws IllegalArgumentException {
+		if (palette.length == 0)
+			throw new IllegalArgumentException("palette must contain at least one color");
+		if (maxIterations < 0)
+			throw new IllegalArgumentException("maxIterations must not be negative");
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("tolerance must not be negative");
+
+		return refine(Images.getHistogram(pixels, pool), palette, maxIterations, tolerance, pool);
+	}
+
+	static Result refine(ColorHistogram hist, int[] palette, int maxIterations, double tolerance, ForkJoinPool pool) {
+		long start = System.nanoTime();
+		int k = palette.length;
+
+		// every occupied cell, as the average of its pixels
+		int[] cells = occupiedCells(hist);
+		int[] cellColors = new int[cells.length];
+		for (int i = 0; i < cells.length; i++) {
+			int c = cells[i];
+			cellColors[i] = average(hist.counts[c], hist.sumR[c], hist.sumG[c], hist.sumB[c]);
+		}
+
+		double[] centroids = new double[k * 3];
+		for (int j = 0; j < k; j++) {
+			centroids[(j * 3)]     = palette[j] >> 16 & 0xFF;
+			centroids[(j * 3) + 1] = palette[j] >> 8 & 0xFF;
+			centroids[(j * 3) + 2] = palette[j] & 0xFF;
+		}
+
+		int nChunks = pool == null
+			? 1
+			: Math.max(1, Math.min(pool.getParallelism(), cells.length / CHUNK_CELLS));
+		int chunkSize = (cells.length + nChunks - 1) / nChunks;
+
+		// per chunk: the pixel count and channel sums of each palette color's cluster
+		long[][] partials = new long[nChunks][k * 4];
+
+		int iterations = 0;
+		double shift = 0;
+		boolean converged = false;
+
+		while (iterations < maxIterations && !converged) {
+			var index = new PaletteIndex(colors(centroids));
+
+			// assignment step, each chunk summing into its own partial
+			Images.forRange(pool, nChunks, 1, (fromChunk, toChunk) -> {
+				for (int ch = fromChunk; ch < toChunk; ch++) {
+					long[] sums = partials[ch];
+					Arrays.fill(sums, 0);
+
+					for (int i = ch * chunkSize, end = Math.min(cells.length, i + chunkSize); i < end; i++) {
+						int c = cells[i];
+						int j = index.indexOf(cellColors[i]) * 4;
+
+						sums[j]     += hist.counts[c];
+						sums[j + 1] += hist.sumR[c];
+						sums[j + 2] += hist.sumG[c];
+						sums[j + 3] += hist.sumB[c];
+					}
+				}
+			});
+
+			for (int ch = 1; ch < nChunks; ch++) {
+				for (int i = 0; i < k * 4; i++) {
+					partials[0][i] += partials[ch][i];
+				}
+			}
+
+			// update step; empty clusters keep their color
+			long[] sums = partials[0];
+			shift = 0;
+			for (int j = 0; j < k; j++) {
+				long count = sums[j * 4];
+				if (count == 0) continue;
+
+				double r = (double) sums[(j * 4) + 1] / count;
+				double g = (double) sums[(j * 4) + 2] / count;
+				double b = (double) sums[(j * 4) + 3] / count;
+
+				double dr = r - centroids[(j * 3)];
+				double dg = g - centroids[(j * 3) + 1];
+				double db = b - centroids[(j * 3) + 2];
+				shift = Math.max(shift, Math.sqrt((dr * dr) + (dg * dg) + (db * db)));
+
+				centroids[(j * 3)]     = r;
+				centroids[(j * 3) + 1] = g;
+				centroids[(j * 3) + 2] = b;
+			}
+
+			iterations++;
+			converged = shift <= tolerance;
+		}
+
+		return new Result(colors(centroids), iterations, converged, shift, System.nanoTime() - start);
+	}
+
+	private static int[] occupiedCells(ColorHistogram hist) {
+		int n = 0;
+		for (long count : hist.counts) {
+			if (count > 0) n++;
+		}
+
+		int[] res = new int[n];
+		for (int c = 0, i = 0; c < ColorHistogram.CELLS; c++) {
+			if (hist.counts[c] > 0) {
+				res[i++] = c;
+			}
+		}
+
+		return res;
+	}
+
+	private static int average(long count, long sumR, long sumG, long sumB) {
+		return 0xFF000000
+			| (int) ((sumR + count / 2) / count) << 16
+			| (int) ((sumG + count / 2) / count) << 8
+			| (int) ((sumB + count / 2) / count);
+	}
+
+	// the centroids rounded to opaque colors
+	private static int[] colors(double[] centroids) {
+		int[] res = new int[centroids.length / 3];
+		for (int j = 0; j < res.length; j++) {
+			res[j] = 0xFF000000
+				| (int) Math.round(centroids[(j * 3)]) << 16
+				| (int) Math.round(centroids[(j * 3) + 1]) << 8
+				| (int) Math.round(centroids[(j * 3) + 2]);
+		}
+		return res;
+	}
+
+	/**
+	 * A refined palette, and how refining it went.
+	 */
+	public static final class Result {
+		private final int[] palette;
+
+		/**
+		 * The number of iterations run.
+		 */
+		public final int iterations;
+
+		/**
+		 * Whether refinement stopped because no color moved further than the tolerance, rather
+		 * than because it ran out of iterations.
+		 */
+		public final boolean converged;
+
+		/**
+		 * The furthest any color moved in the last iteration, or 0 if none ran.
+		 */
+		public final double shift;
+
+		/**
+		 * The time taken, in nanoseconds.
+		 */
+		public final long nanos;
+
+		Result(int[] palette, int iterations, boolean converged, double shift, long nanos) {
+			this.palette = palette;
+			this.iterations = iterations;
+			this.converged = converged;
+			this.shift = shift;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * Returns a copy of the refined palette, in the same order as the palette refinement
+		 * started from.
+		 *
+		 * @return the palette colors
+		 */
+		public int[] palette() {
+			return palette.clone();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%d colors, %d iterations (%s, last shift %.2f), %.1f ms",
+				palette.length, iterations, converged ? "converged" : "not converged", shift, nanos / 1e6
+			);
+		}
+	}
+}
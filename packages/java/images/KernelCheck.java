@@ -0,0 +1,89 @@
+import static java.lang.System.out;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the vector kernels give exactly the same results as the scalar ones, over every
+ * 24-bit color with varied alpha, every gray level, and ranges that do not start or end on a
+ * vector boundary. Exits with status 1 on any difference, or if the vector kernels are not
+ * available; see {@link PixelKernels} for how to build and run with them:
+ *
+ * <pre>{@code
+ * java --add-modules jdk.incubator.vector -cp out KernelCheck
+ * }</pre>
+ */
+public class KernelCheck {
+	private static final int BATCH = 1 << 16;
+
+	public static void main(String[] args) {
+		PixelKernels vector = PixelKernels.vector();
+		if (vector == null) {
+			out.println("Vector kernels not available");
+			System.exit(1);
+		}
+		PixelKernels scalar = new ScalarKernels();
+
+		var random = new Random(1);
+		int[] colors = new int[BATCH];
+		int[] a = new int[BATCH];
+		int[] b = new int[BATCH];
+		byte[] grayA = new byte[BATCH];
+		byte[] grayB = new byte[BATCH];
+		boolean ok = true;
+
+		for (int first = 0; first < 1 << 24; first += BATCH) {
+			for (int i = 0; i < BATCH; i++) {
+				colors[i] = random.nextInt(256) << 24 | (first + i);
+			}
+
+			// an uneven range, so both the vector loop and the leftover pixels are covered
+			int from = random.nextInt(17);
+			int to = BATCH - random.nextInt(17);
+
+			System.arraycopy(colors, 0, a, 0, BATCH);
+			System.arraycopy(colors, 0, b, 0, BATCH);
+			scalar.gammaExpand(a, from, to);
+			vector.gammaExpand(b, from, to);
+			ok &= same("gammaExpand", colors, a, b);
+
+			System.arraycopy(colors, 0, a, 0, BATCH);
+			System.arraycopy(colors, 0, b, 0, BATCH);
+			scalar.gammaCompress(a, from, to);
+			vector.gammaCompress(b, from, to);
+			ok &= same("gammaCompress", colors, a, b);
+
+			Arrays.fill(grayA, (byte) 0);
+			Arrays.fill(grayB, (byte) 0);
+			scalar.getGray(colors, from, to, grayA, 0);
+			vector.getGray(colors, from, to, grayB, 0);
+			ok &= same("getGray", grayA, grayB);
+
+			for (int i = 0; i < BATCH; i++) {
+				grayA[i] = grayB[i] = (byte) (first + i);
+			}
+			scalar.gammaCompress(grayA, from, to);
+			vector.gammaCompress(grayB, from, to);
+			ok &= same("gammaCompress(byte[])", grayA, grayB);
+		}
+
+		out.println(ok ? "Vector and scalar kernels match" : "Vector and scalar kernels differ");
+		if (!ok) System.exit(1);
+	}
+
+	private static boolean same(String kernel, int[] colors, int[] expected, int[] actual) {
+		int i = Arrays.mismatch(expected, actual);
+		if (i < 0) return true;
+
+		out.printf("%s: %08x gives %08x, expected %08x%n", kernel, colors[i], actual[i], expected[i]);
+		return false;
+	}
+
+	private static boolean same(String kernel, byte[] expected, byte[] actual) {
+		int i = Arrays.mismatch(expected, actual);
+		if (i < 0) return true;
+
+		out.printf("%s: index %d gives %d, expected %d%n", kernel, i, actual[i] & 0xFF, expected[i] & 0xFF);
+		return false;
+	}
+}
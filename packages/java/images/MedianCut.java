@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Median cut over a {@link ColorHistogram}.
+ * <p>
+ * Starting from a single box around every occupied cell, the box with the greatest range along any
+ * channel is repeatedly split at the median of that channel (weighted by pixel count), until there
+ * are as many boxes as requested or no box can be split any further. Every step only looks at
+ * histogram cells, so the cost does not depend on how many pixels went into the histogram.
+ * <p>
+ * Which box is split next depends only on the boxes that exist so far, so the boxes for {@code n}
+ * colors are always the result of the first {@code n - 1} splits made for any larger count. This
+ * lets {@link #palettes(int[])} make the splits once for the largest count and read every smaller
+ * palette off the same sequence.
+ */
+final class MedianCut {
+	private final ColorHistogram hist;
+
+	MedianCut(ColorHistogram hist) {
+		this.hist = hist;
+	}
+
+	/**
+	 * Returns the average colors of the boxes left after cutting the histogram into at most
+	 * {@code numColors} boxes. Fewer colors are returned if the histogram has fewer occupied cells.
+	 */
+	int[] palette(int numColors) {
+		return colors(cut(numColors, null));
+	}
+
+	/**
+	 * Returns one palette per entry of {@code counts}, in the same order, each equal to what
+	 * {@link #palette(int)} returns for that count. The splits are only made once, for the
+	 * largest count.
+	 */
+	int[][] palettes(int[] counts) {
+		int max = 0;
+		for (int n : counts) {
+			max = Math.max(max, n);
+		}
+
+		// the box replaced by each split, in the order the splits were made
+		var splitTargets = new ArrayList<Integer>(Math.max(0, max - 1));
+		var allSplits = new ArrayList<Box[]>(Math.max(0, max - 1));
+		// the single box around every occupied cell, or no box at all for an empty histogram
+		List<Box> first = cut(1, null);
+		cut(max, (target, halves) -> {
+			splitTargets.add(target);
+			allSplits.add(halves);
+		});
+
+		int[][] palettes = new int[counts.length][];
+
+		for (int i = 0; i < counts.length; i++) {
+			// replay the first (count - 1) splits
+			var boxes = new ArrayList<Box>(first);
+			int splits = Math.min(counts[i] - 1, allSplits.size());
+
+			for (int k = 0; k < splits; k++) {
+				boxes.set(splitTargets.get(k), allSplits.get(k)[0]);
+				boxes.add(allSplits.get(k)[1]);
+			}
+
+			palettes[i] = colors(boxes);
+		}
+
+		return palettes;
+	}
+
+	// called with the index of the box being replaced and the two boxes that replace it
+	@FunctionalInterface
+	private interface SplitListener {
+		void split(int target, Box[] halves);
+	}
+
+	private List<Box> cut(int numBoxes, SplitListener listener) {
+		var boxes = new ArrayList<Box>(numBoxes);
+
+		Box all = new Box(0, ColorHistogram.SIZE - 1, 0, ColorHistogram.SIZE - 1, 0, ColorHistogram.SIZE - 1);
+		if (all.shrink()) {
+			boxes.add(all);
+		}
+
+		while (boxes.size() < numBoxes) {
+			int target = widestBox(boxes);
+			if (target < 0) break;
+
+			Box[] halves = boxes.get(target).split();
+			boxes.set(target, halves[0]);
+			boxes.add(halves[1]);
+
+			if (listener != null) {
+				listener.split(target, halves);
+			}
+		}
+
+		return boxes;
+	}
+
+	// index of the first box with the greatest range, or -1 if every box is a single cell
+	private static int widestBox(List<Box> boxes) {
+		int best = -1;
+		int bestRange = 0;
+
+		for (int i = 0; i < boxes.size(); i++) {
+			int range = boxes.get(i).range(boxes.get(i).widestChannel());
+
+			if (range > bestRange) {
+				bestRange = range;
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	private int[] colors(List<Box> boxes) {
+		int[] colors = new int[boxes.size()];
+
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = boxes.get(i).average();
+		}
+
+		return colors;
+	}
+
+	// an axis-aligned box of histogram cells; bounds are inclusive
+	private final class Box {
+		// min and max cell coordinate, for red, green, and blue in turn
+		final int[] bounds;
+		long count;
+
+		// the average color, once it has been computed
+		private int average;
+		private boolean hasAverage;
+
+		Box(int r0, int r1, int g0, int g1, int b0, int b1) {
+			bounds = new int[]{ r0, r1, g0, g1, b0, b1 };
+		}
+
+		int range(int channel) {
+			return bounds[2 * channel + 1] - bounds[2 * channel];
+		}
+
+		// Returns 0 for red, 1 for green, or 2 for blue
+		int widestChannel() {
+			int best = 0;
+			for (int c = 1; c < 3; c++) {
+				if (range(c) > range(best)) best = c;
+			}
+			return best;
+		}
+
+		// pixel count of each slice of this box along the given channel
+		long[] sliceCounts(int channel) {
+			long[] slices = new long[range(channel) + 1];
+			int lo = bounds[2 * channel];
+
+			for (int r = bounds[0]; r <= bounds[1]; r++) {
+				for (int g = bounds[2]; g <= bounds[3]; g++) {
+					for (int b = bounds[4]; b <= bounds[5]; b++) {
+						long n = hist.counts[ColorHistogram.cell(r, g, b)];
+						if (n == 0) continue;
+
+						int coord = channel == 0 ? r : channel == 1 ? g : b;
+						slices[coord - lo] += n;
+					}
+				}
+			}
+
+			return slices;
+		}
+
+		// tightens the bounds around the occupied cells and recounts; returns false if the box is empty
+		boolean shrink() {
+			int[] tight = { Integer.MAX_VALUE, -1, Integer.MAX_VALUE, -1, Integer.MAX_VALUE, -1 };
+			count = 0;
+
+			for (int r = bounds[0]; r <= bounds[1]; r++) {
+				for (int g = bounds[2]; g <= bounds[3]; g++) {
+					for (int b = bounds[4]; b <= bounds[5]; b++) {
+						long n = hist.counts[ColorHistogram.cell(r, g, b)];
+						if (n == 0) continue;
+
+						count += n;
+						tight[0] = Math.min(tight[0], r);
+						tight[1] = Math.max(tight[1], r);
+						tight[2] = Math.min(tight[2], g);
+						tight[3] = Math.max(tight[3], g);
+						tight[4] = Math.min(tight[4], b);
+						tight[5] = Math.max(tight[5], b);
+					}
+				}
+			}
+
+			if (count == 0) return false;
+
+			System.arraycopy(tight, 0, bounds, 0, bounds.length);
+			return true;
+		}
+
+		// splits this box in two at the median of its widest channel; only called on boxes that
+		// span more than one cell, so both halves are always non-empty
+		Box[] split() {
+			int channel = widestChannel();
+			int lo = bounds[2 * channel];
+			int hi = bounds[2 * channel + 1];
+			long[] slices = sliceCounts(channel);
+
+			// last coordinate of the lower half: the first slice at which half the pixels are
+			// covered, kept below hi so the upper half gets at least one slice
+			int cut = lo;
+			long covered = slices[0];
+			while (cut < hi - 1 && covered * 2 < count) {
+				cut++;
+				covered += slices[cut - lo];
+			}
+
+			Box lower = new Box(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+			Box upper = new Box(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+			lower.bounds[2 * channel + 1] = cut;
+			upper.bounds[2 * channel] = cut + 1;
+
+			// the shrunken bounds always contain an occupied cell at lo and at hi
+			lower.shrink();
+			upper.shrink();
+
+			return new Box[]{ lower, upper };
+		}
+
+		// average color of every pixel in this box
+		int average() {
+			if (!hasAverage) {
+				average = computeAverage();
+				hasAverage = true;
+			}
+			return average;
+		}
+
+		private int computeAverage() {
+			long r = 0, g = 0, b = 0;
+
+			for (int cr = bounds[0]; cr <= bounds[1]; cr++) {
+				for (int cg = bounds[2]; cg <= bounds[3]; cg++) {
+					for (int cb = bounds[4]; cb <= bounds[5]; cb++) {
+						int cell = ColorHistogram.cell(cr, cg, cb);
+						r += hist.sumR[cell];
+						g += hist.sumG[cell];
+						b += hist.sumB[cell];
+					}
+				}
+			}
+
+			return 0xFF000000
+				| (int) ((r + count / 2) / count) << 16
+				| (int) ((g + count / 2) / count) << 8
+				| (int) ((b + count / 2) / count);
+		}
+	}
+}
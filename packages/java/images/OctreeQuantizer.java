@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An octree color quantizer. Colors are added one at a time, and whenever the tree holds more
+ * leaves than the color limit, the deepest nodes are merged into their parents. Memory use is
+ * bounded by the size of the tree, not by the number of colors added, so an image can be fed in
+ * strips without ever holding all of its pixels at once.
+ * <p>
+ * Only the red, green, and blue channels are used; alpha is ignored. This class is not thread
+ * safe.
+ */
+public final class OctreeQuantizer {
+	private static final int MAX_DEPTH = 8;
+
+	private final int maxColors;
+	private final Node root = new Node(0);
+
+	// nodes with children at each depth, in order of creation
+	private final List<List<Node>> reducible = new ArrayList<>(MAX_DEPTH);
+
+	private int leafCount;
+
+	/**
+	 * Creates an empty quantizer.
+	 * 
+	 * @param maxColors the largest number of colors the palette may have
+	 * @throws IllegalArgumentException if {@code maxColors} is less than 1
+	 */
+	public OctreeQuantizer(int maxColors) throws IllegalArgumentException {
+		if (maxColors < 1)
+			throw new IllegalArgumentException("maxColors must be positive");
+
+		this.maxColors = maxColors;
+
+		for (int i = 0; i < MAX_DEPTH; i++) {
+			reducible.add(new ArrayList<>());
+		}
+		reducible.get(0).add(root);
+	}
+
+	/**
+	 * Adds a single color to the tree.
+	 * 
+	 * @param color a packed RGB color
+	 */
+	public void add(int color) {
+		int r = color >> 16 & 0xFF;
+		int g = color >> 8 & 0xFF;
+		int b = color & 0xFF;
+
+		Node node = root;
+		while (!node.leaf) {
+			int shift = 7 - node.depth;
+			int child = (r >> shift & 1) << 2 | (g >> shift & 1) << 1 | (b >> shift & 1);
+
+			if (node.children[child] == null) {
+				node.children[child] = createNode(node.depth + 1);
+			}
+			node = node.children[child];
+		}
+
+		node.count++;
+		node.sumR += r;
+		node.sumG += g;
+		node.sumB += b;
+
+		while (leafCount > maxColors) {
+			reduce();
+		}
+	}
+
+	/**
+	 * Adds every color in {@code colors[from, to)} to the tree.
+	 * 
+	 * @param colors packed RGB colors
+	 * @param from the first index to add
+	 * @param to the index after the last one to add
+	 */
+	public void add(int[] colors, int from, int to) {
+		for (int i = from; i < to; i++) {
+			add(colors[i]);
+		}
+	}
+
+	/**
+	 * Returns the average color of each leaf in the tree. The palette has at most as many colors
+	 * as the limit this quantizer was created with, and fewer if fewer distinct colors were added.
+	 * 
+	 * @return the palette, in a fixed order determined by the tree
+	 */
+	public int[] palette() {
+		var colors = new ArrayList<Integer>(leafCount);
+		collect(root, colors);
+
+		return colors.stream().mapToInt(i -> i).toArray();
+	}
+
+	private Node createNode(int depth) {
+		Node node = new Node(depth);
+
+		if (node.leaf) {
+			leafCount++;
+		} else {
+			reducible.get(depth).add(node);
+		}
+
+		return node;
+	}
+
+	// merges the children of the most recently created node at the deepest level that has any.
+	// if merging all of them would leave fewer leaves than the limit, only the least populated
+	// ones are merged, and the child slots they occupied are pointed at the merged leaf
+	private void reduce() {
+		int depth = MAX_DEPTH - 1;
+		while (reducible.get(depth).isEmpty()) {
+			depth--;
+		}
+
+		List<Node> level = reducible.get(depth);
+		Node node = level.get(level.size() - 1);
+
+		// the children of a node on the deepest reducible level are all leaves
+		List<Node> leaves = distinctChildren(node);
+		int excess = leafCount - maxColors;
+
+		if (leaves.size() - 1 <= excess) {
+			for (Node leaf : leaves) {
+				node.absorb(leaf);
+			}
+
+			node.children = null;
+			node.leaf = true;
+			leafCount -= leaves.size() - 1;
+			level.remove(level.size() - 1);
+			return;
+		}
+
+		leaves.sort((a, b) -> Long.compare(a.count, b.count));
+		Node target = leaves.get(excess);
+
+		for (int i = 0; i < excess; i++) {
+			Node leaf = leaves.get(i);
+			target.absorb(leaf);
+
+			for (int c = 0; c < node.children.length; c++) {
+				if (node.children[c] == leaf) {
+					node.children[c] = target;
+				}
+			}
+		}
+
+		leafCount -= excess;
+	}
+
+	private static List<Node> distinctChildren(Node node) {
+		var children = new ArrayList<Node>(node.children.length);
+
+		for (Node child : node.children) {
+			if (child != null && !children.contains(child)) {
+				children.add(child);
+			}
+		}
+
+		return children;
+	}
+
+	private static void collect(Node node, List<Integer> colors) {
+		if (node.leaf) {
+			if (node.count > 0) {
+				long n = node.count;
+
+				colors.add(0xFF000000
+					| (int) ((node.sumR + n / 2) / n) << 16
+					| (int) ((node.sumG + n / 2) / n) << 8
+					| (int) ((node.sumB + n / 2) / n));
+			}
+			return;
+		}
+
+		for (Node child : distinctChildren(node)) {
+			collect(child, colors);
+		}
+	}
+
+	private static final class Node {
+		final int depth;
+		boolean leaf;
+		Node[] children;
+		long count, sumR, sumG, sumB;
+
+		Node(int depth) {
+			this.depth = depth;
+			this.leaf = depth == MAX_DEPTH;
+
+			if (!leaf) {
+				children = new Node[8];
+			}
+		}
+
+		void absorb(Node other) {
+			count += other.count;
+			sumR += other.sumR;
+			sumG += other.sumG;
+			sumB += other.sumB;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A cache of palettes keyed by the content of the pixels they were built from. Pass one to
+ * {@link QuantizeOptions#cache(PaletteCache)} and images that have been quantized before (logos,
+ * avatars, and so on) skip palette building entirely.
+ * <p>
+ * Entries are keyed by a 64-bit hash of the pixels together with the pixel count, the number of
+ * colors, the palette engine, and the refinement settings. The least recently used entries are evicted once the total
+ * number of cached palette colors goes over the limit. The cache can optionally be backed by a
+ * directory on disk, so that entries survive a restart: entries missing from memory are looked up
+ * there, and every new entry is written there.
+ * <p>
+ * Instances are safe to use from multiple threads. Palettes are built outside the lock, so two
+ * threads missing on the same key at once may both build it.
+ */
+public final class PaletteCache {
+	private final long maxColors;
+	private final Path directory;
+
+	// guarded by this
+	private final LinkedHashMap<Key, int[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedColors;
+
+	private final LongAdder hits     = new LongAdder();
+	private final LongAdder diskHits = new LongAdder();
+	private final LongAdder misses   = new LongAdder();
+
+	/**
+	 * Creates an in-memory cache.
+	 *
+	 * @param maxColors the largest total number of palette colors kept in memory
+	 * @throws IllegalArgumentException if {@code maxColors} is less than 1
+	 */
+	public PaletteCache(long maxColors) throws IllegalArgumentException {
+		this(maxColors, null);
+	}
+
+	/**
+	 * Creates a cache that is also stored in {@code directory}. Entries already in the directory
+	 * are found again without being loaded up front.
+	 *
+	 * @param maxColors the largest total number of palette colors kept in memory
+	 * @param directory the directory palettes are stored in, created if needed, or {@code null}
+	 *   for an in-memory cache
+	 * @throws IllegalArgumentException if {@code maxColors} is less than 1
+	 * @throws UncheckedIOException if the directory cannot be created
+	 */
+	public PaletteCache(long maxColors, Path directory) throws IllegalArgumentException {
+		if (maxColors < 1)
+			throw new IllegalArgumentException("maxColors must be positive");
+
+		this.maxColors = maxColors;
+		this.directory = directory;
+
+		if (directory != null) {
+			try {
+				Files.createDirectories(directory);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of lookups answered from memory.
+	 *
+	 * @return the memory hit count
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups answered from the directory on disk.
+	 *
+	 * @return the disk hit count
+	 */
+	public long diskHits() {
+		return diskHits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that had to build a palette.
+	 *
+	 * @return the miss count
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of palettes currently held in memory.
+	 *
+	 * @return the entry count
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes every entry from memory. Entries on disk are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		cachedColors = 0;
+	}
+
+	// returns the cached palette for these pixels and settings, or builds it with compute and
+	// caches the result
+	int[] get(int[] pixels, int numColors, QuantizeOptions options, Supplier<int[]> compute) {
+		var key = new Key(
+			hash(pixels), pixels.length, numColors, options.engine(),
+			options.refineIterations(), options.refineTolerance()
+		);
+
+		int[] palette;
+		synchronized (this) {
+			palette = entries.get(key);
+		}
+		if (palette != null) {
+			hits.increment();
+			return palette.clone();
+		}
+
+		palette = load(key);
+		if (palette != null) {
+			diskHits.increment();
+		} else {
+			misses.increment();
+			palette = compute.get();
+			store(key, palette);
+		}
+
+		put(key, palette.clone());
+		return palette;
+	}
+
+	private synchronized void put(Key key, int[] palette) {
+		int[] old = entries.put(key, palette);
+		if (old != null) {
+			cachedColors -= old.length;
+		}
+		cachedColors += palette.length;
+
+		// evict least recently used entries, always keeping the newest one
+		var it = entries.entrySet().iterator();
+		while (cachedColors > maxColors && entries.size() > 1) {
+			Map.Entry<Key, int[]> eldest = it.next();
+			cachedColors -= eldest.getValue().length;
+			it.remove();
+		}
+	}
+
+	private int[] load(Key key) {
+		if (directory == null) return null;
+
+		try (var in = new DataInputStream(Files.newInputStream(directory.resolve(key.fileName())))) {
+			// a damaged length must not turn into a huge or negative allocation
+			int length = in.readInt();
+			if (length < 1 || length > key.numColors) return null;
+
+			int[] palette = new int[length];
+			for (int i = 0; i < palette.length; i++) {
+				palette[i] = in.readInt();
+			}
+			return palette;
+		} catch (IOException ex) {
+			// a missing or damaged entry is treated as a miss, and rewritten
+			return null;
+		}
+	}
+
+	private void store(Key key, int[] palette) {
+		if (directory == null) return;
+
+		try {
+			// write to a temporary file first so readers never see a partial entry
+			Path tmp = Files.createTempFile(directory, "palette", ".tmp");
+			boolean moved = false;
+			try {
+				try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+					out.writeInt(palette.length);
+					for (int color : palette) {
+						out.writeInt(color);
+					}
+				}
+				Files.move(tmp, directory.resolve(key.fileName()), StandardCopyOption.REPLACE_EXISTING);
+				moved = true;
+			} finally {
+				// don't leave a stray temporary file behind after a failed write
+				if (!moved) {
+					Files.deleteIfExists(tmp);
+				}
+			}
+		} catch (IOException ex) {
+			// the disk store is best-effort; the entry is still cached in memory
+		}
+	}
+
+	// 64-bit hash of every pixel, mixing 2 pixels per step
+	static long hash(int[] pixels) {
+		long h = 0x9E3779B97F4A7C15L ^ pixels.length;
+
+		int i = 0;
+		for (; i + 1 < pixels.length; i += 2) {
+			long v = ((long) pixels[i] << 32) | (pixels[i + 1] & 0xFFFFFFFFL);
+			h = Long.rotateLeft(h ^ (v * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+		}
+		if (i < pixels.length) {
+			h = Long.rotateLeft(h ^ (pixels[i] * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+		}
+
+		// final avalanche
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private static final class Key {
+		final long hash;
+		final int length;
+		final int numColors;
+		final QuantizeOptions.Engine engine;
+		final int refineIterations;
+		final double refineTolerance;
+
+		Key(
+			long hash, int length, int numColors, QuantizeOptions.Engine engine,
+			int refineIterations, double refineTolerance
+		) {
+			this.hash = hash;
+			this.length = length;
+			this.numColors = numColors;
+			this.engine = engine;
+			this.refineIterations = refineIterations;
+			this.refineTolerance = refineTolerance;
+		}
+
+		String fileName() {
+			// Locale.ROOT so that the same entry has the same name under any default locale
+			String name = String.format(
+				Locale.ROOT, "%016x-%d-%d-%s", hash, length, numColors, engine.name().toLowerCase(Locale.ROOT)
+			);
+
+			// unrefined entries keep the names they had before refinement existed
+			return refineIterations == 0
+				? name + ".pal"
+				: name + String.format(Locale.ROOT, "-kmeans%d-%s.pal", refineIterations, refineTolerance);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) return true;
+			if (!(obj instanceof Key)) return false;
+
+			var other = (Key) obj;
+
+			return hash == other.hash
+				&& length == other.length
+				&& numColors == other.numColors
+				&& engine == other.engine
+				&& refineIterations == other.refineIterations
+				&& Double.compare(refineTolerance, other.refineTolerance) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(hash, length, numColors, engine, refineIterations, refineTolerance);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A k-d tree over the colors of a palette, used to find the palette entry nearest to a given color.
+ * <p>
+ * The tree is built once per palette and can then be searched any number of times, from any number
+ * of threads. Only the red, green, and blue channels take part in the search; alpha is ignored.
+ * Distances are compared as squared integer Euclidean distances, and ties are broken in favor of
+ * the lowest palette index, so the result is always the same as a linear scan over the palette.
+ */
+public final class PaletteIndex implements PaletteMapper {
+	private final int[] palette;
+
+	// the tree is stored implicitly: the node for the range [lo, hi) sits at (lo + hi) / 2, its
+	// left subtree covers [lo, mid) and its right subtree covers [mid + 1, hi)
+	private final int[] nodeColors;
+	private final int[] nodeIndexes;
+	private final byte[] nodeAxes;
+
+	/**
+	 * Builds an index over the given palette. The palette array is copied.
+	 *
+	 * @param palette the palette colors, as packed RGB ints
+	 * @throws IllegalArgumentException if {@code palette} is {@code null} or empty
+	 */
+	public PaletteIndex(int[] palette) throws IllegalArgumentException {
+		if (palette == null || palette.length == 0)
+			throw new IllegalArgumentException("palette must contain at least one color");
+
+		this.palette = palette.clone();
+
+		// only the first occurrence of each color can ever be the nearest one, so duplicates are
+		// dropped up front; this also guarantees at most one node at distance 0 from any color
+		var firstIndex = new HashMap<Integer, Integer>();
+		for (int i = 0; i < palette.length; i++) {
+			firstIndex.putIfAbsent(palette[i] & 0xFFFFFF, i);
+		}
+
+		int n = firstIndex.size();
+		nodeColors  = new int[n];
+		nodeIndexes = new int[n];
+		nodeAxes    = new byte[n];
+
+		int k = 0;
+		for (int i = 0; i < palette.length; i++) {
+			if (firstIndex.get(palette[i] & 0xFFFFFF) == i) {
+				nodeColors[k]  = palette[i] & 0xFFFFFF;
+				nodeIndexes[k] = i;
+				k++;
+			}
+		}
+
+		build(0, n, new long[n]);
+	}
+
+	/**
+	 * Returns a copy of the palette this index was built from.
+	 *
+	 * @return the palette colors
+	 */
+	public int[] palette() {
+		return palette.clone();
+	}
+
+	/**
+	 * Returns the number of colors in the palette this index was built from.
+	 *
+	 * @return the palette size
+	 */
+	@Override
+	public int size() {
+		return palette.length;
+	}
+
+	/**
+	 * Returns the palette color at the given index.
+	 *
+	 * @param index a palette index
+	 * @return the palette color at {@code index}
+	 */
+	@Override
+	public int colorAt(int index) {
+		return palette[index];
+	}
+
+	/**
+	 * Finds the index of the palette color nearest to {@code color}.
+	 *
+	 * @param color a packed RGB color
+	 * @return the lowest palette index among the colors at minimum distance from {@code color}
+	 */
+	@Override
+	public int indexOf(int color) {
+		int r = color >> 16 & 0xFF;
+		int g = color >> 8 & 0xFF;
+		int b = color & 0xFF;
+
+		return (int) search(0, nodeColors.length, r, g, b, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Finds the palette color nearest to {@code color}. Equivalent to
+	 * {@code colorAt(indexOf(color))}.
+	 *
+	 * @param color a packed RGB color
+	 * @return the nearest palette color
+	 */
+	@Override
+	public int nearest(int color) {
+		return palette[indexOf(color)];
+	}
+
+	// sorts [lo, hi) so that the median along the axis with the greatest spread sits at the middle,
+	// then does the same for both halves
+	private void build(int lo, int hi, long[] keys) {
+		if (hi - lo <= 0) return;
+
+		int mid  = (lo + hi) >>> 1;
+		int axis = greatestSpreadAxis(lo, hi);
+		int shift = 16 - (axis * 8);
+
+		// sort by (channel value, position) so that the permutation can be read back from the keys
+		for (int i = lo; i < hi; i++) {
+			keys[i] = ((long) (nodeColors[i] >> shift & 0xFF) << 32) | i;
+		}
+		Arrays.sort(keys, lo, hi);
+
+		int[] colors  = new int[hi - lo];
+		int[] indexes = new int[hi - lo];
+		for (int i = lo; i < hi; i++) {
+			int from = (int) keys[i];
+			colors[i - lo]  = nodeColors[from];
+			indexes[i - lo] = nodeIndexes[from];
+		}
+		System.arraycopy(colors, 0, nodeColors, lo, colors.length);
+		System.arraycopy(indexes, 0, nodeIndexes, lo, indexes.length);
+
+		nodeAxes[mid] = (byte) axis;
+
+		build(lo, mid, keys);
+		build(mid + 1, hi, keys);
+	}
+
+	// Returns 0 for red, 1 for green, or 2 for blue
+	private int greatestSpreadAxis(int lo, int hi) {
+		int best = 0;
+		int bestSpread = -1;
+
+		for (int axis = 0; axis < 3; axis++) {
+			int shift = 16 - (axis * 8);
+			int min = 0xFF;
+			int max = 0;
+
+			for (int i = lo; i < hi; i++) {
+				int c = nodeColors[i] >> shift & 0xFF;
+				min = Math.min(min, c);
+				max = Math.max(max, c);
+			}
+
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				best = axis;
+			}
+		}
+
+		return best;
+	}
+
+	// best is packed as (squared distance << 32 | palette index), so comparing two packed values
+	// compares distances first and palette indexes second
+	private long search(int lo, int hi, int r, int g, int b, long best) {
+		// stop on an empty subtree, or once an exact match has been found anywhere in the tree
+		if (hi - lo <= 0 || (best >>> 32) == 0) return best;
+
+		int mid   = (lo + hi) >>> 1;
+		int color = nodeColors[mid];
+
+		int dr = r - (color >> 16 & 0xFF);
+		int dg = g - (color >> 8 & 0xFF);
+		int db = b - (color & 0xFF);
+		long dist = (dr * dr) + (dg * dg) + (db * db);
+
+		long candidate = (dist << 32) | nodeIndexes[mid];
+		if (candidate < best) {
+			best = candidate;
+		}
+
+		// colors are unique, so an exact match cannot be beaten
+		if (dist == 0) return best;
+
+		int diff = switch (nodeAxes[mid]) {
+			case 0 -> dr;
+			case 1 -> dg;
+			default -> db;
+		};
+
+		if (diff < 0) {
+			best = search(lo, mid, r, g, b, best);
+			if ((long) diff * diff <= (best >>> 32)) {
+				best = search(mid + 1, hi, r, g, b, best);
+			}
+		} else {
+			best = search(mid + 1, hi, r, g, b, best);
+			if ((long) diff * diff <= (best >>> 32)) {
+				best = search(lo, mid, r, g, b, best);
+			}
+		}
+
+		return best;
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * Maps arbitrary colors onto the colors of a fixed palette. Implementations must be safe to use
+ * from multiple threads at once.
+ *
+ * @see PaletteIndex
+ * @see InverseColormap
+ */
+public interface PaletteMapper {
+	/**
+	 * Returns the number of colors in the palette.
+	 *
+	 * @return the palette size
+	 */
+	int size();
+
+	/**
+	 * Returns the palette color at the given index.
+	 *
+	 * @param index a palette index
+	 * @return the palette color at {@code index}
+	 */
+	int colorAt(int index);
+
+	/**
+	 * Returns the index of the palette color that {@code color} maps to.
+	 *
+	 * @param color a packed RGB color
+	 * @return a palette index
+	 */
+	int indexOf(int color);
+
+	/**
+	 * Returns the palette color that {@code color} maps to.
+	 *
+	 * @param color a packed RGB color
+	 * @return a palette color
+	 */
+	default int nearest(int color) {
+		return colorAt(indexOf(color));
+	}
+}
@@ -0,0 +1,255 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Picks the pixels a palette is built from when {@link QuantizeOptions#sampling(QuantizeOptions.Sampling)}
+ * is set, and measures how much a sampled palette costs in quality.
+ * <p>
+ * A palette only depends on the distribution of colors, which a few tens of thousands of pixels
+ * usually capture well, so sampling makes palette building take about the same time for any image
+ * size. Use {@link #estimate(BufferedImage, int, QuantizeOptions)} to compare a sampled palette
+ * with the exact one when choosing a budget.
+ */
+public final class PaletteSampler {
+	// fixed so that sampling the same pixels always gives the same palette
+	private static final long SEED = 0x5DEECE66DL;
+
+	private PaletteSampler() {}
+
+	/**
+	 * Compares the palette {@code options} would build for {@code img} with the palette built from
+	 * every pixel. Both palettes are measured by the mean squared distance from each pixel to its
+	 * nearest palette color, over every pixel of the image.
+	 *
+	 * @param img the image to measure
+	 * @param numColors the maximum number of colors in the palettes
+	 * @param options palette engine, refinement, sampling mode and budget, and pool; the cache is not used
+	 * @return the errors and timings of both palettes
+	 * @throws IllegalArgumentException if {@code numColors} is not positive
+	 */
+	public static Estimate estimate(BufferedImage img, int numColors, QuantizeOptions options)
+			throws IllegalArgumentException {
+		if (numColors < 1)
+			throw new IllegalArgumentException("numColors must be positive");
+
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int[] pixels = Images.getPixels(img, options.pool());
+
+		long start = System.nanoTime();
+		int[] sample = sample(pixels, w, h, options.sampling(), options.sampleBudget());
+		int[] sampled = Images.getPalette(sample, numColors, withoutSampling(options));
+		long sampledNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int[] exact = Images.getPalette(pixels, numColors, withoutSampling(options));
+		long exactNanos = System.nanoTime() - start;
+
+		return new Estimate(
+			sample.length, pixels.length,
+			meanSquaredError(pixels, exact), meanSquaredError(pixels, sampled),
+			exactNanos, sampledNanos
+		);
+	}
+
+	// the palette settings of options, with no cache and no sampling
+	private static QuantizeOptions withoutSampling(QuantizeOptions options) {
+		return new QuantizeOptions()
+			.engine(options.engine())
+			.refineIterations(options.refineIterations())
+			.refineTolerance(options.refineTolerance())
+			.pool(options.pool());
+	}
+
+	// mean over every pixel of the squared distance to its nearest palette color
+	private static double meanSquaredError(int[] pixels, int[] palette) {
+		var index = new PaletteIndex(palette);
+
+		long sum = 0;
+		for (int color : pixels) {
+			int nearest = index.nearest(color);
+
+			int dr = (color >> 16 & 0xFF) - (nearest >> 16 & 0xFF);
+			int dg = (color >> 8 & 0xFF) - (nearest >> 8 & 0xFF);
+			int db = (color & 0xFF) - (nearest & 0xFF);
+
+			sum += (dr * dr) + (dg * dg) + (db * db);
+		}
+
+		return (double) sum / pixels.length;
+	}
+
+	// returns the pixels to build a palette from: pixels itself if it is within the budget or
+	// sampling is off, and a new array of at most budget pixels otherwise
+	static int[] sample(int[] pixels, int w, int h, QuantizeOptions.Sampling mode, int budget) {
+		if (mode == QuantizeOptions.Sampling.ALL || pixels.length <= budget) return pixels;
+
+		return switch (mode) {
+			case RESERVOIR -> reservoir(pixels, budget);
+			case STRIDE -> stride(pixels, budget);
+			case PYRAMID -> pyramid(pixels, w, h, budget);
+			case ALL -> pixels;
+		};
+	}
+
+	// uniform sample without replacement (Li's "Algorithm L"), which skips ahead between
+	// replacements instead of drawing a random number for every pixel
+	private static int[] reservoir(int[] pixels, int k) {
+		int[] res = Arrays.copyOf(pixels, k);
+		var random = new SplittableRandom(SEED);
+
+		double weight = Math.exp(Math.log(uniform(random)) / k);
+		long i = k - 1;
+
+		while (true) {
+			double skip = Math.floor(Math.log(uniform(random)) / Math.log(1 - weight));
+			if (!(i + skip + 1 < pixels.length)) break;
+
+			i += (long) skip + 1;
+			res[random.nextInt(k)] = pixels[(int) i];
+			weight *= Math.exp(Math.log(uniform(random)) / k);
+		}
+
+		return res;
+	}
+
+	// uniform in (0, 1]
+	private static double uniform(SplittableRandom random) {
+		return 1 - random.nextDouble();
+	}
+
+	// every step-th pixel, starting half a step in
+	private static int[] stride(int[] pixels, int budget) {
+		int step = (pixels.length + budget - 1) / budget;
+		int first = step / 2;
+		int[] res = new int[((pixels.length - first) + step - 1) / step];
+
+		for (int i = 0, j = first; i < res.length; i++, j += step) {
+			res[i] = pixels[j];
+		}
+
+		return res;
+	}
+
+	// the image scaled down by 2^level in each direction, with each pixel the average (alpha
+	// included) of the block it covers; blocks on the right and bottom edges may be smaller
+	private static int[] pyramid(int[] pixels, int w, int h, int budget) {
+		int level = 0;
+		while ((long) ceilShift(w, level) * ceilShift(h, level) > budget) {
+			level++;
+		}
+
+		int block = 1 << level;
+		int sw = ceilShift(w, level);
+		int sh = ceilShift(h, level);
+		int[] res = new int[sw * sh];
+
+		// channel sums of each block in the current row of blocks
+		long[] a = new long[sw], r = new long[sw], g = new long[sw], b = new long[sw];
+
+		for (int by = 0; by < sh; by++) {
+			int y0 = by * block;
+			int y1 = Math.min(h, y0 + block);
+
+			for (int y = y0; y < y1; y++) {
+				for (int x = 0; x < w; x++) {
+					int color = pixels[(y * w) + x];
+					int bx = x >> level;
+
+					a[bx] += color >>> 24;
+					r[bx] += color >> 16 & 0xFF;
+					g[bx] += color >> 8 & 0xFF;
+					b[bx] += color & 0xFF;
+				}
+			}
+
+			for (int bx = 0; bx < sw; bx++) {
+				long count = (long) (Math.min(w, (bx + 1) * block) - (bx * block)) * (y1 - y0);
+
+				res[(by * sw) + bx] = (int) (
+					((a[bx] + count / 2) / count) << 24
+					| ((r[bx] + count / 2) / count) << 16
+					| ((g[bx] + count / 2) / count) << 8
+					| ((b[bx] + count / 2) / count)
+				);
+			}
+
+			Arrays.fill(a, 0);
+			Arrays.fill(r, 0);
+			Arrays.fill(g, 0);
+			Arrays.fill(b, 0);
+		}
+
+		return res;
+	}
+
+	private static int ceilShift(int n, int shift) {
+		return (int) (((long) n + (1L << shift) - 1) >> shift);
+	}
+
+	/**
+	 * How a sampled palette compares with the exact one. Errors are mean squared distances in
+	 * linear RGB, with channels from 0 to 255.
+	 */
+	public static final class Estimate {
+		/**
+		 * The number of pixels the sampled palette was built from.
+		 */
+		public final int sampleSize;
+
+		/**
+		 * The number of pixels in the image.
+		 */
+		public final int pixelCount;
+
+		/**
+		 * The error of the palette built from every pixel.
+		 */
+		public final double exactError;
+
+		/**
+		 * The error of the palette built from the sample.
+		 */
+		public final double sampledError;
+
+		/**
+		 * The time taken to build the exact palette, in nanoseconds.
+		 */
+		public final long exactNanos;
+
+		/**
+		 * The time taken to sample and build the sampled palette, in nanoseconds.
+		 */
+		public final long sampledNanos;
+
+		Estimate(int sampleSize, int pixelCount, double exactError, double sampledError, long exactNanos, long sampledNanos) {
+			this.sampleSize = sampleSize;
+			this.pixelCount = pixelCount;
+			this.exactError = exactError;
+			this.sampledError = sampledError;
+			this.exactNanos = exactNanos;
+			this.sampledNanos = sampledNanos;
+		}
+
+		/**
+		 * Returns how much larger the sampled palette's error is than the exact palette's, as a
+		 * fraction of the exact error. Sampling can also come out slightly ahead, which gives a
+		 * negative value.
+		 *
+		 * @return the relative error increase
+		 */
+		public double relativeError() {
+			return exactError == 0 ? (sampledError == 0 ? 0 : Double.POSITIVE_INFINITY) : (sampledError / exactError) - 1;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%d of %d pixels: error %.2f vs %.2f exact (%+.1f%%), %d ms vs %d ms",
+				sampleSize, pixelCount, sampledError, exactError, relativeError() * 100,
+				sampledNanos / 1_000_000, exactNanos / 1_000_000
+			);
+		}
+	}
+}
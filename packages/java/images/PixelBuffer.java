@@ -0,0 +1,600 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A raw, uncompressed image: a small header followed by packed pixels. A {@code PixelBuffer} can
+ * live on the heap or be memory-mapped from a file, so that stages run in separate steps (or
+ * processes) can hand images to each other through the page cache instead of encoding and
+ * decoding PNG or JPEG in between.
+ * <p>
+ * Pixel values are stored as they appear in the image, in the sRGB color space. The file layout
+ * is, in big-endian order:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number, the ASCII characters "SIPX"
+ *      4     1  version, currently 1
+ *      5     1  format: 0 for ARGB, 1 for GRAY
+ *      6     2  reserved, always 0
+ *      8     4  width in pixels
+ *     12     4  height in pixels
+ *     16     -  pixels, row by row: one int per pixel (ARGB) or one byte per pixel (GRAY)
+ * </pre>
+ *
+ * Buffers are not limited to 2 GB: they are stored as a series of segments of up to 1 GB each,
+ * and pixels are addressed with {@code long} indexes. A buffer can also be allocated
+ * {@linkplain #allocateDirect(Format, int, int) off the heap}, where it puts no load on the
+ * garbage collector. Off-heap and file-backed buffers hold on to their memory or mapping until
+ * they are {@linkplain #close() closed}, so they are best used in a try-with-resources block.
+ */
+public final class PixelBuffer implements AutoCloseable {
+	/**
+	 * The layout of each pixel.
+	 */
+	public enum Format {
+		/**
+		 * Four bytes per pixel, packed as an ARGB int.
+		 */
+		ARGB(4),
+
+		/**
+		 * One byte per pixel holding a gray level.
+		 */
+		GRAY(1);
+
+		/**
+		 * The number of bytes each pixel takes up.
+		 */
+		public final int bytesPerPixel;
+
+		Format(int bytesPerPixel) {
+			this.bytesPerPixel = bytesPerPixel;
+		}
+	}
+
+	/**
+	 * The size of the header in bytes.
+	 */
+	public static final int HEADER_SIZE = 16;
+
+	private static final int MAGIC   = 0x53495058; // "SIPX"
+	private static final int VERSION = 1;
+
+	// a single ByteBuffer cannot go past 2 GB, so the buffer is split into segments of
+	// 2^SEGMENT_SHIFT bytes; the segment size is a multiple of 4, so no pixel straddles two segments
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	// releases the memory behind a direct or mapped ByteBuffer right away, or null if this JVM
+	// does not allow it, in which case the memory is released once the buffer is garbage collected
+	private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+	private final Format format;
+	private final int width;
+	private final int height;
+	private final boolean offHeap;
+
+	// the whole buffer, header included; pixel i is at byte HEADER_SIZE + (i * bytesPerPixel),
+	// which is in segment (byte >>> SEGMENT_SHIFT)
+	private final ByteBuffer[] segments;
+	// int views of the segments, for ARGB buffers
+	private final IntBuffer[] ints;
+
+	// bulk accesses run between acquire() and release(); close() sets closed, then waits for the
+	// ones already running to finish before it releases any memory. Single-pixel accesses only
+	// check closed, since a shared counter on every pixel would cost more than the access itself
+	private volatile boolean closed;
+	private final AtomicInteger users = new AtomicInteger();
+
+	private PixelBuffer(ByteBuffer[] segments, Format format, int width, int height, boolean offHeap) {
+		this.segments = segments;
+		this.format   = format;
+		this.width    = width;
+		this.height   = height;
+		this.offHeap  = offHeap;
+
+		ints = new IntBuffer[segments.length];
+		if (format == Format.ARGB) {
+			for (int s = 0; s < segments.length; s++) {
+				ints[s] = segments[s].asIntBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Creates a buffer on the heap with every pixel set to 0.
+	 *
+	 * @param format the pixel format
+	 * @param width the width in pixels
+	 * @param height the height in pixels
+	 * @return a new buffer
+	 * @throws IllegalArgumentException if the dimensions are not positive
+	 */
+	public static PixelBuffer allocate(Format format, int width, int height) throws IllegalArgumentException {
+		ByteBuffer[] segments = split(byteSize(format, width, height), (position, size) -> ByteBuffer.allocate(size));
+		writeHeader(segments[0], format, width, height);
+
+		return new PixelBuffer(segments, format, width, height, false);
+	}
+
+	/**
+	 * Creates a buffer outside the Java heap with every pixel set to 0. Its memory is released
+	 * when it is {@linkplain #close() closed}.
+	 *
+	 * @param format the pixel format
+	 * @param width the width in pixels
+	 * @param height the height in pixels
+	 * @return a new buffer
+	 * @throws IllegalArgumentException if the dimensions are not positive
+	 */
+	public static PixelBuffer allocateDirect(Format format, int width, int height) throws IllegalArgumentException {
+		ByteBuffer[] segments = split(byteSize(format, width, height), (position, size) -> ByteBuffer.allocateDirect(size));
+		writeHeader(segments[0], format, width, height);
+
+		return new PixelBuffer(segments, format, width, height, true);
+	}
+
+	/**
+	 * Creates (or replaces) the file at {@code path} and maps it into memory for reading and
+	 * writing. Every pixel starts at 0. The mapping is released when the buffer is
+	 * {@linkplain #close() closed}.
+	 *
+	 * @param path the file to create
+	 * @param format the pixel format
+	 * @param width the width in pixels
+	 * @param height the height in pixels
+	 * @return a buffer backed by the file
+	 * @throws IOException if the file cannot be created or mapped
+	 * @throws IllegalArgumentException if the dimensions are not positive
+	 */
+	public static PixelBuffer create(Path path, Format format, int width, int height)
+			throws IOException, IllegalArgumentException {
+		long size = byteSize(format, width, height);
+
+		try (var channel = FileChannel.open(
+			path,
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.READ, StandardOpenOption.WRITE
+		)) {
+			ByteBuffer[] segments = split(size, (position, n) -> channel.map(MapMode.READ_WRITE, position, n));
+			writeHeader(segments[0], format, width, height);
+
+			return new PixelBuffer(segments, format, width, height, true);
+		}
+	}
+
+	/**
+	 * Maps an existing pixel buffer file into memory, read-only. The mapping is released when the
+	 * buffer is {@linkplain #close() closed}.
+	 *
+	 * @param path the file to map
+	 * @return a buffer backed by the file
+	 * @throws IOException if the file cannot be mapped or is not a pixel buffer
+	 */
+	public static PixelBuffer map(Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException(path + " is too short to be a pixel buffer");
+
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+			if (buffer.getInt(0) != MAGIC)
+				throw new IOException(path + " is not a pixel buffer");
+			if (buffer.get(4) != VERSION)
+				throw new IOException(path + " has unsupported version " + buffer.get(4));
+
+			int formatId = buffer.get(5);
+			if (formatId < 0 || formatId >= Format.values().length)
+				throw new IOException(path + " has unknown pixel format " + formatId);
+
+			Format format = Format.values()[formatId];
+			int width  = buffer.getInt(8);
+			int height = buffer.getInt(12);
+
+			if (width <= 0 || height <= 0 || channel.size() < byteSize(format, width, height))
+				throw new IOException(path + " is truncated or has invalid dimensions");
+
+			ByteBuffer[] segments = split(
+				byteSize(format, width, height), (position, n) -> channel.map(MapMode.READ_ONLY, position, n)
+			);
+
+			return new PixelBuffer(segments, format, width, height, true);
+		}
+	}
+
+	/**
+	 * Copies the pixels of an image into a new ARGB buffer on the heap.
+	 *
+	 * @param img the image to copy
+	 * @return a new buffer
+	 */
+	public static PixelBuffer of(BufferedImage img) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		var res = allocate(Format.ARGB, w, h);
+
+		int[] row = new int[w];
+		for (int y = 0; y < h; y++) {
+			Images.readRows(img, y, y + 1, row, 0, false);
+			res.setARGB((long) y * w, row, 0, w);
+		}
+
+		return res;
+	}
+
+	private static long byteSize(Format format, int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("width and height must be positive");
+
+		return HEADER_SIZE + ((long) width * height * format.bytesPerPixel);
+	}
+
+	@FunctionalInterface
+	private interface SegmentFactory<X extends Exception> {
+		ByteBuffer create(long position, int size) throws X;
+	}
+
+	// splits size bytes into segments made by factory
+	private static <X extends Exception> ByteBuffer[] split(long size, SegmentFactory<X> factory) throws X {
+		var res = new ByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+
+		for (int s = 0; s < res.length; s++) {
+			long position = (long) s << SEGMENT_SHIFT;
+			res[s] = factory.create(position, (int) Math.min(SEGMENT_MASK + 1, size - position));
+		}
+
+		return res;
+	}
+
+	private static MethodHandle findInvokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+
+			return MethodHandles.lookup()
+				.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+				.bindTo(theUnsafe.get(null));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	private static void writeHeader(ByteBuffer buffer, Format format, int width, int height) {
+		buffer.putInt(0, MAGIC);
+		buffer.put(4, (byte) VERSION);
+		buffer.put(5, (byte) format.ordinal());
+		buffer.putShort(6, (short) 0);
+		buffer.putInt(8, width);
+		buffer.putInt(12, height);
+	}
+
+	/**
+	 * Returns the pixel format of this buffer.
+	 *
+	 * @return the format
+	 */
+	public Format format() {
+		return format;
+	}
+
+	/**
+	 * Returns the width of this buffer in pixels.
+	 *
+	 * @return the width
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of this buffer in pixels.
+	 *
+	 * @return the height
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * Returns the number of pixels in this buffer, which may be more than fits in an {@code int}.
+	 *
+	 * @return {@code width() * height()}
+	 */
+	public long size() {
+		return (long) width * height;
+	}
+
+	/**
+	 * Returns pixel {@code i} as an ARGB color. Gray pixels are returned as an opaque color with
+	 * all three channels set to the gray level.
+	 *
+	 * @param i the pixel index, {@code (y * width) + x}
+	 * @return the pixel color
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public int getARGB(long i) throws IllegalStateException {
+		checkOpen();
+
+		if (format == Format.ARGB) {
+			long offset = HEADER_SIZE + (i << 2);
+			return ints(offset).get((int) (offset & SEGMENT_MASK) >> 2);
+		}
+
+		long offset = HEADER_SIZE + i;
+		int v = Byte.toUnsignedInt(segment(offset).get((int) (offset & SEGMENT_MASK)));
+		return 0xFF000000 | v << 16 | v << 8 | v;
+	}
+
+	/**
+	 * Sets pixel {@code i} to an ARGB color. In a gray buffer, the color's blue channel is stored.
+	 *
+	 * @param i the pixel index, {@code (y * width) + x}
+	 * @param argb the new color
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public void setARGB(long i, int argb) throws IllegalStateException {
+		checkOpen();
+
+		if (format == Format.ARGB) {
+			long offset = HEADER_SIZE + (i << 2);
+			ints(offset).put((int) (offset & SEGMENT_MASK) >> 2, argb);
+		} else {
+			long offset = HEADER_SIZE + i;
+			segment(offset).put((int) (offset & SEGMENT_MASK), (byte) argb);
+		}
+	}
+
+	/**
+	 * Copies {@code length} pixels, starting at pixel {@code i}, into {@code dst} as ARGB colors,
+	 * the same as {@link #getARGB(long)} returns them.
+	 *
+	 * @param i the index of the first pixel
+	 * @param dst the array to copy into
+	 * @param offset the index in {@code dst} of the first pixel
+	 * @param length the number of pixels to copy
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public void getARGB(long i, int[] dst, int offset, int length) throws IllegalStateException {
+		acquire();
+		try {
+			while (length > 0) {
+				long byteOffset = HEADER_SIZE + (i * format.bytesPerPixel);
+				ByteBuffer segment = segment(byteOffset);
+				int pos = (int) (byteOffset & SEGMENT_MASK);
+				// pixels left in this segment
+				int n = Math.min(length, (segment.capacity() - pos) / format.bytesPerPixel);
+
+				if (format == Format.ARGB) {
+					ints(byteOffset).get(pos >> 2, dst, offset, n);
+				} else {
+					for (int k = 0; k < n; k++) {
+						int v = Byte.toUnsignedInt(segment.get(pos + k));
+						dst[offset + k] = 0xFF000000 | v << 16 | v << 8 | v;
+					}
+				}
+
+				i += n;
+				offset += n;
+				length -= n;
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Sets {@code length} pixels, starting at pixel {@code i}, to the ARGB colors in {@code src},
+	 * the same as {@link #setARGB(long, int)} does.
+	 *
+	 * @param i the index of the first pixel
+	 * @param src the colors to copy
+	 * @param offset the index in {@code src} of the first color
+	 * @param length the number of pixels to set
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public void setARGB(long i, int[] src, int offset, int length) throws IllegalStateException {
+		acquire();
+		try {
+			while (length > 0) {
+				long byteOffset = HEADER_SIZE + (i * format.bytesPerPixel);
+				ByteBuffer segment = segment(byteOffset);
+				int pos = (int) (byteOffset & SEGMENT_MASK);
+				int n = Math.min(length, (segment.capacity() - pos) / format.bytesPerPixel);
+
+				if (format == Format.ARGB) {
+					ints(byteOffset).put(pos >> 2, src, offset, n);
+				} else {
+					for (int k = 0; k < n; k++) {
+						segment.put(pos + k, (byte) src[offset + k]);
+					}
+				}
+
+				i += n;
+				offset += n;
+				length -= n;
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Returns the gray level of pixel {@code i}. For ARGB buffers, this is the blue channel.
+	 *
+	 * @param i the pixel index, {@code (y * width) + x}
+	 * @return the gray level, from 0 to 255
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public int getGray(long i) throws IllegalStateException {
+		return getARGB(i) & 0xFF;
+	}
+
+	/**
+	 * Sets the gray level of pixel {@code i}. In an ARGB buffer, the pixel becomes an opaque gray.
+	 *
+	 * @param i the pixel index, {@code (y * width) + x}
+	 * @param gray the gray level, from 0 to 255
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public void setGray(long i, int gray) throws IllegalStateException {
+		if (format == Format.GRAY) {
+			setARGB(i, gray);
+		} else {
+			int v = gray & 0xFF;
+			setARGB(i, 0xFF000000 | v << 16 | v << 8 | v);
+		}
+	}
+
+	// the segment holding byte offset of the buffer; only once the buffer is known to be open
+	private ByteBuffer segment(long offset) {
+		return segments[(int) (offset >>> SEGMENT_SHIFT)];
+	}
+
+	// the int view of the segment holding byte offset of the buffer; only once the buffer is known
+	// to be open
+	private IntBuffer ints(long offset) {
+		return ints[(int) (offset >>> SEGMENT_SHIFT)];
+	}
+
+	// registers an access, failing if the buffer is closed; the closed check comes after the
+	// increment, so either close() sees this access or this access sees closed
+	private void acquire() throws IllegalStateException {
+		users.incrementAndGet();
+		if (closed) {
+			users.decrementAndGet();
+			throw new IllegalStateException("pixel buffer is closed");
+		}
+	}
+
+	// ends an access registered by acquire(), waking close() if it is waiting for the last one
+	private void release() {
+		if (users.decrementAndGet() == 0 && closed) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private void checkOpen() throws IllegalStateException {
+		if (closed)
+			throw new IllegalStateException("pixel buffer is closed");
+	}
+
+	/**
+	 * Writes any changes to a file-backed buffer out to the file. Does nothing for other buffers.
+	 *
+	 * @throws IllegalStateException if the buffer is closed
+	 */
+	public void force() throws IllegalStateException {
+		acquire();
+		try {
+			for (ByteBuffer segment : segments) {
+				if (segment instanceof MappedByteBuffer) {
+					((MappedByteBuffer) segment).force();
+				}
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Closes this buffer. The memory of an {@linkplain #allocateDirect(Format, int, int) off-heap}
+	 * buffer and the mapping of a file-backed one are released right away, without waiting for
+	 * the garbage collector; changes to a writable file are kept. Closing a buffer that is already
+	 * closed does nothing.
+	 * <p>
+	 * Every method but {@link #format()}, {@link #width()}, {@link #height()} and {@link #size()}
+	 * throws {@link IllegalStateException} once the buffer is closed, on any thread. Bulk copies,
+	 * {@link #force()} and {@link #toBufferedImage()} already running when the buffer is closed
+	 * are allowed to finish first: {@code close()} blocks until they do before it releases
+	 * anything. The single-pixel methods are not waited for, so a buffer must not be closed while
+	 * another thread may still be in one of them; threads that share a buffer with one that
+	 * closes it should use the bulk methods.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+
+		// wait out the bulk accesses that started before closed was set; the last one to
+		// finish wakes this thread
+		boolean interrupted = false;
+		while (users.get() > 0) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (offHeap && INVOKE_CLEANER != null) {
+			for (ByteBuffer segment : segments) {
+				try {
+					INVOKE_CLEANER.invokeExact(segment);
+				} catch (Throwable ex) {
+					// the memory is released when the segment is garbage collected instead
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies this buffer into a new image: {@code TYPE_INT_ARGB} for ARGB buffers and
+	 * {@code TYPE_BYTE_GRAY} for gray ones.
+	 *
+	 * @return a new image
+	 * @throws IllegalStateException if the buffer is closed, or has more pixels than an image can
+	 *   hold
+	 */
+	public BufferedImage toBufferedImage() throws IllegalStateException {
+		if (size() > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("pixel buffer is too large for a BufferedImage");
+
+		if (format == Format.ARGB) {
+			var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+			getARGB(0, data, 0, data.length);
+			return img;
+		}
+
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+
+		acquire();
+		try {
+			long offset = HEADER_SIZE;
+			for (int i = 0; i < data.length; ) {
+				ByteBuffer segment = segment(offset);
+				int pos = (int) (offset & SEGMENT_MASK);
+				int n = Math.min(data.length - i, segment.capacity() - pos);
+
+				segment.get(pos, data, i, n);
+				i += n;
+				offset += n;
+			}
+		} finally {
+			release();
+		}
+
+		return img;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * The loops behind batch gamma conversion and gray levels, run over packed arrays of pixels.
+ * {@link ScalarKernels} runs them one pixel at a time; {@code vector/VectorKernels.java} runs them
+ * several pixels at a time with {@code jdk.incubator.vector}. Both give exactly the same results.
+ * <p>
+ * The vector kernels live in their own directory so that the rest of the sources build with a
+ * plain {@code javac *.java}. To use them, compile that file as well and run with the module:
+ *
+ * <pre>{@code
+ * javac -d out *.java
+ * javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorKernels.java
+ * java --add-modules jdk.incubator.vector -cp out ...
+ * }</pre>
+ *
+ * {@link #get()} picks them up whenever they load, and falls back to the scalar loops otherwise.
+ */
+interface PixelKernels {
+	// Images.gammaExpand(int) for every pixel in pixels[from, to), in place
+	void gammaExpand(int[] pixels, int from, int to);
+
+	// Images.gammaCompress(int) for every pixel in pixels[from, to), in place
+	void gammaCompress(int[] pixels, int from, int to);
+
+	// Images.gammaCompress(byte) for every gray level in values[from, to), in place
+	void gammaCompress(byte[] values, int from, int to);
+
+	// Images.getGray(int) for every pixel in pixels[from, to), written to dst starting at offset
+	void getGray(int[] pixels, int from, int to, byte[] dst, int offset);
+
+	/**
+	 * Returns the vector kernels if they are available, and the scalar ones otherwise.
+	 */
+	static PixelKernels get() {
+		PixelKernels vector = vector();
+		return vector != null ? vector : new ScalarKernels();
+	}
+
+	/**
+	 * Returns the vector kernels, or {@code null} if they were not compiled or the
+	 * {@code jdk.incubator.vector} module is not present.
+	 */
+	static PixelKernels vector() {
+		try {
+			return (PixelKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A chain of per-pixel operations run over an image in a single pass. Instead of each operation
+ * reading a full image and producing another, the source is read in bands of a few rows, every
+ * stage runs over the band while it is still in cache, and the band is written straight into the
+ * result. The only full-size buffer is the result itself.
+ * <p>
+ * Stages are added with chained calls and run in the order they were added:
+ *
+ * <pre>{@code
+ * BufferedImage gray = new PixelPipeline().expand().gray().compress().apply(img);
+ * }</pre>
+ *
+ * Before running, the chain is simplified: a {@link #compress()} directly followed by an
+ * {@link #expand()}, or the other way around, is dropped, which also saves the precision the
+ * 8-bit round trip would lose. A leading {@code expand()} is done while reading the source.
+ * <p>
+ * The result is {@code TYPE_BYTE_GRAY} if the last stage that changes colors is {@link #gray()}
+ * or {@link #threshold(int)}, and {@code TYPE_INT_ARGB} otherwise. Every stage keeps each pixel's
+ * alpha.
+ */
+public final class PixelPipeline {
+	// number of pixels aimed for in each band; bands are whole rows
+	private static final int BAND_PIXELS = 1 << 14;
+
+	private enum Kind { EXPAND, COMPRESS, MAP, GRAY, THRESHOLD }
+
+	private final List<Stage> stages = new ArrayList<>();
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates an empty pipeline, which copies its source.
+	 */
+	public PixelPipeline() {}
+
+	/**
+	 * Adds a stage converting pixels from sRGB to linear RGB.
+	 *
+	 * @return this object
+	 */
+	public PixelPipeline expand() {
+		stages.add(new Stage(Kind.EXPAND, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds a stage converting pixels from linear RGB to sRGB.
+	 *
+	 * @return this object
+	 */
+	public PixelPipeline compress() {
+		stages.add(new Stage(Kind.COMPRESS, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds a stage replacing each pixel with the nearest color of a palette. The mapper's palette
+	 * should be in the same color space as the pixels at this point of the chain.
+	 *
+	 * @param mapper the palette to map onto
+	 * @return this object
+	 */
+	public PixelPipeline map(PaletteMapper mapper) {
+		stages.add(new Stage(Kind.MAP, Objects.requireNonNull(mapper), 0));
+		return this;
+	}
+
+	/**
+	 * Adds a stage replacing each pixel with its luminance as a gray color. Pixels should be in
+	 * linear RGB at this point of the chain.
+	 *
+	 * @return this object
+	 */
+	public PixelPipeline gray() {
+		stages.add(new Stage(Kind.GRAY, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds a stage making each pixel white if its luminance is at least {@code level}, and black
+	 * otherwise.
+	 *
+	 * @param level the luminance threshold, from 0 to 256
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code level} is out of range
+	 */
+	public PixelPipeline threshold(int level) throws IllegalArgumentException {
+		if (level < 0 || level > 256)
+			throw new IllegalArgumentException("level must be between 0 and 256");
+
+		stages.add(new Stage(Kind.THRESHOLD, null, level));
+		return this;
+	}
+
+	/**
+	 * Sets the pool bands are processed on, or {@code null} to process them on the calling thread.
+	 * Defaults to {@code null}.
+	 *
+	 * @param pool the pool to use
+	 * @return this object
+	 */
+	public PixelPipeline pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Runs the pipeline over {@code img}.
+	 *
+	 * @param img the source image, which is not modified
+	 * @return a new image holding the result
+	 */
+	public BufferedImage apply(BufferedImage img) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+
+		List<Stage> chain = simplify(stages);
+
+		// expanding the source is done while reading it
+		boolean linear = !chain.isEmpty() && chain.get(0).kind == Kind.EXPAND;
+		if (linear) {
+			chain.remove(0);
+		}
+
+		boolean grayResult = hasGrayResult(chain);
+		var res = new BufferedImage(w, h, grayResult ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_ARGB);
+		int[] argbOut = grayResult ? null : ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+		byte[] grayOut = grayResult ? ((DataBufferByte) res.getRaster().getDataBuffer()).getData() : null;
+
+		int bandRows = Math.max(1, BAND_PIXELS / w);
+
+		// split into tasks of whole bands, each with its own band buffer
+		Images.forRange(pool, (h + bandRows - 1) / bandRows, 1, (fromBand, toBand) -> {
+			int[] band = new int[bandRows * w];
+
+			for (int b = fromBand; b < toBand; b++) {
+				int fromRow = b * bandRows;
+				int toRow = Math.min(h, fromRow + bandRows);
+				int n = (toRow - fromRow) * w;
+
+				Images.readRows(img, fromRow, toRow, band, 0, linear);
+
+				for (Stage s : chain) {
+					s.run(band, n);
+				}
+
+				if (grayResult) {
+					// gray pixels have the same value in every channel
+					for (int i = 0; i < n; i++) {
+						grayOut[(fromRow * w) + i] = (byte) band[i];
+					}
+				} else {
+					System.arraycopy(band, 0, argbOut, fromRow * w, n);
+				}
+			}
+		});
+
+		return res;
+	}
+
+	/**
+	 * Runs the pipeline over {@code src}, writing the result into {@code dst} band by band. The
+	 * buffers may be of any size, and may be the same buffer. A {@code GRAY} destination stores
+	 * the blue channel of each result pixel.
+	 *
+	 * @param src the buffer to read
+	 * @param dst the buffer to write, of the same dimensions as {@code src}
+	 * @return {@code dst}
+	 * @throws IllegalArgumentException if the buffers differ in size
+	 * @throws IllegalStateException if either buffer is closed
+	 */
+	public PixelBuffer apply(PixelBuffer src, PixelBuffer dst) throws IllegalArgumentException, IllegalStateException {
+		if (src.width() != dst.width() || src.height() != dst.height())
+			throw new IllegalArgumentException("src and dst must have the same dimensions");
+
+		int w = src.width();
+		int h = src.height();
+
+		List<Stage> chain = simplify(stages);
+		int bandRows = Math.max(1, BAND_PIXELS / w);
+
+		Images.forRange(pool, (h + bandRows - 1) / bandRows, 1, (fromBand, toBand) -> {
+			int[] band = new int[bandRows * w];
+
+			for (int b = fromBand; b < toBand; b++) {
+				int fromRow = b * bandRows;
+				int n = (Math.min(h, fromRow + bandRows) - fromRow) * w;
+
+				src.getARGB((long) fromRow * w, band, 0, n);
+
+				for (Stage s : chain) {
+					s.run(band, n);
+				}
+
+				dst.setARGB((long) fromRow * w, band, 0, n);
+			}
+		});
+
+		return dst;
+	}
+
+	// whether the last stage that changes colors leaves every pixel gray
+	private static boolean hasGrayResult(List<Stage> chain) {
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			Kind kind = chain.get(i).kind;
+
+			if (kind == Kind.GRAY || kind == Kind.THRESHOLD) return true;
+			if (kind == Kind.MAP) return false;
+		}
+		return false;
+	}
+
+	// drops stages that undo the stage right before them
+	private static List<Stage> simplify(List<Stage> stages) {
+		var res = new ArrayList<Stage>(stages.size());
+
+		for (Stage s : stages) {
+			Stage last = res.isEmpty() ? null : res.get(res.size() - 1);
+
+			if (last != null && last.undoes(s)) {
+				res.remove(res.size() - 1);
+			} else {
+				res.add(s);
+			}
+		}
+
+		return res;
+	}
+
+	private static final class Stage {
+		final Kind kind;
+		final PaletteMapper mapper;
+		final int level;
+
+		Stage(Kind kind, PaletteMapper mapper, int level) {
+			this.kind = kind;
+			this.mapper = mapper;
+			this.level = level;
+		}
+
+		boolean undoes(Stage next) {
+			return (kind == Kind.EXPAND && next.kind == Kind.COMPRESS)
+				|| (kind == Kind.COMPRESS && next.kind == Kind.EXPAND);
+		}
+
+		// runs this stage over pixels[0, n), in place
+		void run(int[] pixels, int n) {
+			switch (kind) {
+				case EXPAND -> Images.gammaExpand(pixels, 0, n);
+				case COMPRESS -> Images.gammaCompress(pixels, 0, n);
+				case MAP -> {
+					for (int i = 0; i < n; i++) {
+						pixels[i] = mapper.nearest(pixels[i]);
+					}
+				}
+				case GRAY -> {
+					for (int i = 0; i < n; i++) {
+						int v = Images.getGray(pixels[i]) & 0xFF;
+						pixels[i] = (pixels[i] & 0xFF000000) | v << 16 | v << 8 | v;
+					}
+				}
+				case THRESHOLD -> {
+					for (int i = 0; i < n; i++) {
+						int v = (Images.getGray(pixels[i]) & 0xFF) >= level ? 0xFFFFFF : 0;
+						pixels[i] = (pixels[i] & 0xFF000000) | v;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,391 @@
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings for {@link Images#quantize(java.awt.image.BufferedImage, int, QuantizeOptions)}. Each
+ * setter returns this object, so settings can be chained:
+ * 
+ * <pre>{@code
+ * var opts = new QuantizeOptions().lookup(QuantizeOptions.Lookup.RGB555);
+ * }</pre>
+ */
+public final class QuantizeOptions {
+	/**
+	 * How pixels are matched to palette colors.
+	 */
+	public enum Lookup {
+		/**
+		 * Every pixel is matched to its exact nearest palette color.
+		 */
+		EXACT,
+
+		/**
+		 * Pixels are matched through an {@link InverseColormap} with 5 bits per channel.
+		 */
+		RGB555,
+
+		/**
+		 * Pixels are matched through an {@link InverseColormap} with 6 bits per channel.
+		 */
+		RGB666;
+
+		/**
+		 * Creates a mapper of this kind over the given palette.
+		 * 
+		 * @param palette the palette colors
+		 * @return a new mapper
+		 */
+		public PaletteMapper createMapper(int[] palette) {
+			return switch (this) {
+				case EXACT  -> new PaletteIndex(palette);
+				case RGB555 -> new InverseColormap(palette, 5);
+				case RGB666 -> new InverseColormap(palette, 6);
+			};
+		}
+	}
+
+	/**
+	 * The algorithm used to build the palette.
+	 */
+	public enum Engine {
+		/**
+		 * Median cut over a color histogram of the whole image.
+		 */
+		MEDIAN_CUT,
+
+		/**
+		 * A single streaming pass through an {@link OctreeQuantizer}.
+		 */
+		OCTREE
+	}
+
+	/**
+	 * How pixels are dithered when they are mapped to the palette.
+	 */
+	public enum Dither {
+		/**
+		 * Every pixel is mapped to its nearest palette color on its own.
+		 */
+		NONE,
+
+		/**
+		 * Floyd-Steinberg error diffusion. With a pool, rows run as a wavefront on the pool's
+		 * threads.
+		 */
+		FLOYD_STEINBERG,
+
+		/**
+		 * Ordered dithering with an 8x8 Bayer matrix. With a pool, pixels are split into chunks.
+		 */
+		ORDERED
+	}
+
+	/**
+	 * Which pixels the palette is built from. The mapping stage always uses every pixel.
+	 */
+	public enum Sampling {
+		/**
+		 * Every pixel.
+		 */
+		ALL,
+
+		/**
+		 * A uniform random sample of {@linkplain #sampleBudget() budget} pixels. The sample is
+		 * drawn with a fixed seed, so the same pixels always give the same palette.
+		 */
+		RESERVOIR,
+
+		/**
+		 * Every {@code n}th pixel, with {@code n} chosen so that at most
+		 * {@linkplain #sampleBudget() budget} pixels are used.
+		 */
+		STRIDE,
+
+		/**
+		 * The image scaled down by the smallest power of two that brings it within the
+		 * {@linkplain #sampleBudget() budget}, each pixel being the average of its block.
+		 */
+		PYRAMID
+	}
+
+	/**
+	 * The kind of image quantization returns.
+	 */
+	public enum Output {
+		/**
+		 * A {@code TYPE_INT_ARGB} image, 4 bytes per pixel. Dithered pixels keep their source alpha.
+		 */
+		ARGB,
+
+		/**
+		 * An image holding palette indices, with an {@link java.awt.image.IndexColorModel} of the
+		 * palette: {@code TYPE_BYTE_BINARY} with 1, 2 or 4 bits per pixel for palettes of up to 16
+		 * colors, and {@code TYPE_BYTE_INDEXED} for up to 256. Every pixel is opaque. Palettes of
+		 * more than 256 colors give an {@link #ARGB} image instead.
+		 */
+		INDEXED
+	}
+
+	/**
+	 * The default number of pixels a sampled palette is built from.
+	 */
+	public static final int DEFAULT_SAMPLE_BUDGET = 1 << 16;
+
+	/**
+	 * The default distance under which a palette color being refined is considered to have
+	 * stopped moving.
+	 */
+	public static final double DEFAULT_REFINE_TOLERANCE = 0.5;
+
+	private Engine engine = Engine.MEDIAN_CUT;
+	private Lookup lookup = Lookup.EXACT;
+	private Dither dither = Dither.NONE;
+	private ForkJoinPool pool;
+	private PaletteCache cache;
+	private Sampling sampling = Sampling.ALL;
+	private int sampleBudget = DEFAULT_SAMPLE_BUDGET;
+	private Output output = Output.ARGB;
+	private int refineIterations;
+	private double refineTolerance = DEFAULT_REFINE_TOLERANCE;
+
+	/**
+	 * Creates a set of options with every setting at its default.
+	 */
+	public QuantizeOptions() {}
+
+	/**
+	 * Returns the algorithm used to build the palette. Defaults to {@link Engine#MEDIAN_CUT}.
+	 * 
+	 * @return the palette engine
+	 */
+	public Engine engine() {
+		return engine;
+	}
+
+	/**
+	 * Sets the algorithm used to build the palette. Both engines share the same palette mapping
+	 * stage.
+	 * 
+	 * @param engine the palette engine
+	 * @return this object
+	 */
+	public QuantizeOptions engine(Engine engine) {
+		this.engine = Objects.requireNonNull(engine);
+		return this;
+	}
+
+	/**
+	 * Returns how pixels are matched to palette colors. Defaults to {@link Lookup#EXACT}.
+	 * 
+	 * @return the lookup mode
+	 */
+	public Lookup lookup() {
+		return lookup;
+	}
+
+	/**
+	 * Sets how pixels are matched to palette colors.
+	 * 
+	 * @param lookup the lookup mode
+	 * @return this object
+	 */
+	public QuantizeOptions lookup(Lookup lookup) {
+		this.lookup = Objects.requireNonNull(lookup);
+		return this;
+	}
+
+	/**
+	 * Returns how pixels are dithered. Defaults to {@link Dither#NONE}.
+	 * 
+	 * @return the dithering mode
+	 */
+	public Dither dither() {
+		return dither;
+	}
+
+	/**
+	 * Sets how pixels are dithered when they are mapped to the palette.
+	 * 
+	 * @param dither the dithering mode
+	 * @return this object
+	 */
+	public QuantizeOptions dither(Dither dither) {
+		this.dither = Objects.requireNonNull(dither);
+		return this;
+	}
+
+	/**
+	 * Returns the pool that the per-pixel stages are split across, or {@code null} if
+	 * quantization runs on the calling thread. Defaults to {@code null}.
+	 * 
+	 * @return the fork/join pool, or {@code null}
+	 */
+	public ForkJoinPool pool() {
+		return pool;
+	}
+
+	/**
+	 * Sets the pool that the per-pixel stages are split across. The result is the same whether or
+	 * not a pool is used.
+	 * 
+	 * @param pool the fork/join pool, or {@code null} to run on the calling thread
+	 * @return this object
+	 */
+	public QuantizeOptions pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Splits the per-pixel stages across the {@linkplain ForkJoinPool#commonPool() common pool}.
+	 * 
+	 * @return this object
+	 */
+	public QuantizeOptions parallel() {
+		return pool(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Returns the cache palettes are looked up in and added to, or {@code null} if palettes are
+	 * always built. Defaults to {@code null}.
+	 * 
+	 * @return the palette cache, or {@code null}
+	 */
+	public PaletteCache cache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the cache palettes are looked up in and added to.
+	 * 
+	 * @param cache the palette cache, or {@code null} to always build palettes
+	 * @return this object
+	 */
+	public QuantizeOptions cache(PaletteCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Returns which pixels the palette is built from. Defaults to {@link Sampling#ALL}.
+	 * 
+	 * @return the sampling mode
+	 */
+	public Sampling sampling() {
+		return sampling;
+	}
+
+	/**
+	 * Sets which pixels the palette is built from. Use
+	 * {@link PaletteSampler#estimate(java.awt.image.BufferedImage, int, QuantizeOptions)} to see how
+	 * far a sampled palette is from the exact one.
+	 * 
+	 * @param sampling the sampling mode
+	 * @return this object
+	 */
+	public QuantizeOptions sampling(Sampling sampling) {
+		this.sampling = Objects.requireNonNull(sampling);
+		return this;
+	}
+
+	/**
+	 * Returns the largest number of pixels a sampled palette is built from. Defaults to
+	 * {@value #DEFAULT_SAMPLE_BUDGET}.
+	 * 
+	 * @return the sample budget
+	 */
+	public int sampleBudget() {
+		return sampleBudget;
+	}
+
+	/**
+	 * Sets the largest number of pixels a sampled palette is built from. Images with no more
+	 * pixels than this are never sampled.
+	 * 
+	 * @param budget the sample budget
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code budget} is less than 1
+	 */
+	public QuantizeOptions sampleBudget(int budget) throws IllegalArgumentException {
+		if (budget < 1)
+			throw new IllegalArgumentException("budget must be positive");
+
+		sampleBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Returns the kind of image quantization returns. Defaults to {@link Output#ARGB}.
+	 * 
+	 * @return the output kind
+	 */
+	public Output output() {
+		return output;
+	}
+
+	/**
+	 * Sets the kind of image quantization returns. An {@linkplain Output#INDEXED indexed} image
+	 * takes a quarter of the memory or less, and is faster to encode as PNG or GIF.
+	 * 
+	 * @param output the output kind
+	 * @return this object
+	 */
+	public QuantizeOptions output(Output output) {
+		this.output = Objects.requireNonNull(output);
+		return this;
+	}
+
+	/**
+	 * Returns the most k-means iterations each palette is refined with, or 0 if palettes are not
+	 * refined. Defaults to 0.
+	 * 
+	 * @return the maximum number of refinement iterations
+	 */
+	public int refineIterations() {
+		return refineIterations;
+	}
+
+	/**
+	 * Sets the most k-means iterations each palette is refined with after the engine builds it
+	 * (see {@link KMeansRefiner}). Refinement usually lowers the error of a median cut palette
+	 * noticeably, for a cost that does not depend on the image size.
+	 * 
+	 * @param iterations the maximum number of refinement iterations, or 0 to not refine palettes
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code iterations} is negative
+	 */
+	public QuantizeOptions refineIterations(int iterations) throws IllegalArgumentException {
+		if (iterations < 0)
+			throw new IllegalArgumentException("iterations must not be negative");
+
+		refineIterations = iterations;
+		return this;
+	}
+
+	/**
+	 * Returns the distance under which a palette color being refined is considered to have
+	 * stopped moving. Defaults to {@value #DEFAULT_REFINE_TOLERANCE}.
+	 * 
+	 * @return the refinement tolerance
+	 */
+	public double refineTolerance() {
+		return refineTolerance;
+	}
+
+	/**
+	 * Sets the distance under which a palette color being refined is considered to have stopped
+	 * moving, in linear RGB with channels from 0 to 255. Refinement stops early once every color
+	 * has stopped moving.
+	 * 
+	 * @param tolerance the refinement tolerance
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code tolerance} is negative or not a number
+	 */
+	public QuantizeOptions refineTolerance(double tolerance) throws IllegalArgumentException {
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("tolerance must not be negative");
+
+		refineTolerance = tolerance;
+		return this;
+	}
+}
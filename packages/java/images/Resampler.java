@@ -0,0 +1,300 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resizes images with a choice of filter. Resizing is done in two separate passes, horizontal
+ * then vertical, each with the filter weights worked out once per output column (or row) and
+ * reused for every row (or column). Downscaling large images first makes every later stage, from
+ * palette building to ASCII rendering, proportionally cheaper.
+ * <p>
+ * The output is split into bands of rows, which can run on a pool. Each band reads only the source
+ * rows it needs, filters them horizontally into a small buffer, and filters that buffer
+ * vertically into the result, so no full-size intermediate image is kept. Pixels are filtered in
+ * linear RGB with premultiplied alpha, so that neither gamma nor transparent pixels darken the
+ * result. When shrinking, filters are widened by the scale factor so that every source pixel
+ * contributes.
+ *
+ * <pre>{@code
+ * BufferedImage small = new Resampler().filter(Resampler.Filter.BILINEAR).resize(img, 640, 480);
+ * }</pre>
+ *
+ * Instances can be reused, and are safe to use from multiple threads once configured.
+ */
+public final class Resampler {
+	/**
+	 * The weighting applied to source pixels around each output pixel.
+	 */
+	public enum Filter {
+		/**
+		 * Every source pixel the output pixel covers counts equally: an area average when
+		 * shrinking, and nearest-neighbor when enlarging.
+		 */
+		BOX(0.5),
+
+		/**
+		 * Weights fall off linearly with distance: bilinear interpolation when enlarging.
+		 */
+		BILINEAR(1),
+
+		/**
+		 * A windowed sinc with 3 lobes, the sharpest of the filters. Edges may get a faint halo.
+		 */
+		LANCZOS(3);
+
+		// distance from the center, in source pixels at scale 1, past which the weight is 0
+		final double support;
+
+		Filter(double support) {
+			this.support = support;
+		}
+
+		double weight(double x) {
+			return switch (this) {
+				case BOX -> (x >= -0.5 && x < 0.5) ? 1 : 0;
+				case BILINEAR -> Math.max(0, 1 - Math.abs(x));
+				case LANCZOS -> Math.abs(x) < 3 ? sinc(x) * sinc(x / 3) : 0;
+			};
+		}
+
+		private static double sinc(double x) {
+			if (x == 0) return 1;
+
+			x *= Math.PI;
+			return Math.sin(x) / x;
+		}
+	}
+
+	// number of output pixels aimed for in each band; bands are whole rows
+	private static final int BAND_PIXELS = 1 << 14;
+
+	// each sRGB channel value in linear RGB, from 0 to 255 but not rounded to whole values, since
+	// 8-bit linear values lose too much precision in the dark tones to survive being filtered
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+	// the linear values halfway between consecutive entries of SRGB_TO_LINEAR
+	private static final float[] SRGB_EDGES = new float[255];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			double v = i / 255.0;
+			v = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+			SRGB_TO_LINEAR[i] = (float) (v * 255);
+		}
+		for (int i = 0; i < 255; i++) {
+			SRGB_EDGES[i] = (SRGB_TO_LINEAR[i] + SRGB_TO_LINEAR[i + 1]) / 2;
+		}
+	}
+
+	private Filter filter = Filter.LANCZOS;
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates a resampler with the {@link Filter#LANCZOS} filter, running on the calling thread.
+	 */
+	public Resampler() {}
+
+	/**
+	 * Sets the filter. Defaults to {@link Filter#LANCZOS}.
+	 *
+	 * @param filter the filter to use
+	 * @return this object
+	 */
+	public Resampler filter(Filter filter) {
+		this.filter = Objects.requireNonNull(filter);
+		return this;
+	}
+
+	/**
+	 * Sets the pool bands are processed on, or {@code null} to process them on the calling thread.
+	 * Defaults to {@code null}.
+	 *
+	 * @param pool the pool to use
+	 * @return this object
+	 */
+	public Resampler pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Resizes {@code img}.
+	 *
+	 * @param img the image to resize, which is not modified
+	 * @param width the width of the result in pixels
+	 * @param height the height of the result in pixels
+	 * @return a new {@code TYPE_INT_ARGB} image
+	 * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+	 */
+	public BufferedImage resize(BufferedImage img, int width, int height) throws IllegalArgumentException {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("width and height must be positive");
+
+		int srcW = img.getWidth();
+		int srcH = img.getHeight();
+
+		Weights columns = new Weights(filter, srcW, width);
+		Weights rows = new Weights(filter, srcH, height);
+
+		var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] out = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+
+		int bandRows = Math.max(1, BAND_PIXELS / width);
+
+		Images.forRange(pool, (height + bandRows - 1) / bandRows, 1, (fromBand, toBand) -> {
+			int[] src = new int[srcW];
+			float[] premultiplied = new float[srcW * 4];
+
+			for (int b = fromBand; b < toBand; b++) {
+				int fromRow = b * bandRows;
+				int toRow = Math.min(height, fromRow + bandRows);
+
+				// the source rows this band reads
+				int sy0 = rows.start[fromRow];
+				int sy1 = rows.start[toRow - 1] + rows.count[toRow - 1];
+
+				// horizontal pass: each source row, filtered to the output width
+				float[] band = new float[(sy1 - sy0) * width * 4];
+				for (int sy = sy0; sy < sy1; sy++) {
+					Images.readRows(img, sy, sy + 1, src, 0, false);
+					premultiply(src, premultiplied);
+					filterRow(premultiplied, columns, band, (sy - sy0) * width * 4);
+				}
+
+				// vertical pass, straight into the result
+				for (int y = fromRow; y < toRow; y++) {
+					int taps = rows.count[y];
+					int first = (rows.start[y] - sy0) * width * 4;
+					int weights = y * rows.taps;
+
+					for (int x = 0; x < width; x++) {
+						float a = 0, r = 0, g = 0, bl = 0;
+
+						for (int k = 0, i = first + (x * 4); k < taps; k++, i += width * 4) {
+							float wt = rows.weights[weights + k];
+							a  += wt * band[i];
+							r  += wt * band[i + 1];
+							g  += wt * band[i + 2];
+							bl += wt * band[i + 3];
+						}
+
+						out[(y * width) + x] = unpremultiply(a, r, g, bl);
+					}
+				}
+			}
+		});
+
+		return res;
+	}
+
+	// splits sRGB pixels into alpha and alpha-weighted linear channels
+	private static void premultiply(int[] pixels, float[] dst) {
+		for (int i = 0; i < pixels.length; i++) {
+			int color = pixels[i];
+			float a = color >>> 24;
+			float scale = a / 255;
+
+			dst[(i * 4)]     = a;
+			dst[(i * 4) + 1] = SRGB_TO_LINEAR[color >> 16 & 0xFF] * scale;
+			dst[(i * 4) + 2] = SRGB_TO_LINEAR[color >> 8 & 0xFF] * scale;
+			dst[(i * 4) + 3] = SRGB_TO_LINEAR[color & 0xFF] * scale;
+		}
+	}
+
+	private static void filterRow(float[] row, Weights columns, float[] dst, int offset) {
+		for (int x = 0; x < columns.start.length; x++) {
+			int taps = columns.count[x];
+			int weights = x * columns.taps;
+			float a = 0, r = 0, g = 0, b = 0;
+
+			for (int k = 0, i = columns.start[x] * 4; k < taps; k++, i += 4) {
+				float wt = columns.weights[weights + k];
+				a += wt * row[i];
+				r += wt * row[i + 1];
+				g += wt * row[i + 2];
+				b += wt * row[i + 3];
+			}
+
+			int j = offset + (x * 4);
+			dst[j]     = a;
+			dst[j + 1] = r;
+			dst[j + 2] = g;
+			dst[j + 3] = b;
+		}
+	}
+
+	// packs filtered premultiplied channels back into an sRGB color, clamping the overshoot and
+	// undershoot of negative filter lobes
+	private static int unpremultiply(float a, float r, float g, float b) {
+		if (a < 0.5f) return 0;
+
+		float scale = 255 / a;
+		int alpha = a >= 255 ? 255 : (int) (a + 0.5f);
+
+		return alpha << 24 | compress(r * scale) << 16 | compress(g * scale) << 8 | compress(b * scale);
+	}
+
+	// the sRGB value whose linear value is nearest to v
+	private static int compress(float v) {
+		int lo = 0, hi = SRGB_EDGES.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (v < SRGB_EDGES[mid]) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	// the weights of the source pixels for each output pixel along one axis: output pixel i takes
+	// count[i] source pixels from start[i], weighted by weights[(i * taps) + k]
+	private static final class Weights {
+		final int[] start;
+		final int[] count;
+		final float[] weights;
+		final int taps;
+
+		Weights(Filter filter, int srcLength, int dstLength) {
+			double scale = (double) srcLength / dstLength;
+			// widen the filter when shrinking so that it covers every source pixel
+			double filterScale = Math.max(1, scale);
+			double support = filter.support * filterScale;
+
+			taps = (int) Math.ceil(support) * 2 + 1;
+			start = new int[dstLength];
+			count = new int[dstLength];
+			weights = new float[dstLength * taps];
+
+			double[] w = new double[taps];
+
+			for (int i = 0; i < dstLength; i++) {
+				double center = (i + 0.5) * scale;
+				int from = Math.max(0, (int) (center - support + 0.5));
+				int to = Math.min(srcLength, (int) (center + support + 0.5));
+				to = Math.min(to, from + taps);
+
+				double total = 0;
+				for (int s = from; s < to; s++) {
+					w[s - from] = filter.weight((s + 0.5 - center) / filterScale);
+					total += w[s - from];
+				}
+
+				// no pixel under the filter (a box filter between two pixels): take the nearest one
+				if (total == 0) {
+					from = Math.min(srcLength - 1, (int) center);
+					to = from + 1;
+					w[0] = total = 1;
+				}
+
+				start[i] = from;
+				count[i] = to - from;
+				for (int s = from; s < to; s++) {
+					weights[(i * taps) + (s - from)] = (float) (w[s - from] / total);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * The {@link PixelKernels} loops, one pixel at a time. These are the reference results the vector
+ * kernels must reproduce.
+ */
+final class ScalarKernels implements PixelKernels {
+	@Override
+	public void gammaExpand(int[] pixels, int from, int to) {
+		int[] table = Images.SRGB_TO_LINEAR;
+
+		for (int i = from; i < to; i++) {
+			int color = pixels[i];
+
+			pixels[i] = (color & 0xFF000000)
+				| table[color >> 16 & 0xFF] << 16
+				| table[color >> 8 & 0xFF] << 8
+				| table[color & 0xFF];
+		}
+	}
+
+	@Override
+	public void gammaCompress(int[] pixels, int from, int to) {
+		int[] table = Images.LINEAR_TO_SRGB;
+
+		for (int i = from; i < to; i++) {
+			int color = pixels[i];
+
+			pixels[i] = (color & 0xFF000000)
+				| table[color >> 16 & 0xFF] << 16
+				| table[color >> 8 & 0xFF] << 8
+				| table[color & 0xFF];
+		}
+	}
+
+	@Override
+	public void gammaCompress(byte[] values, int from, int to) {
+		int[] table = Images.LINEAR_TO_SRGB;
+
+		for (int i = from; i < to; i++) {
+			values[i] = (byte) table[values[i] & 0xFF];
+		}
+	}
+
+	@Override
+	public void getGray(int[] pixels, int from, int to, byte[] dst, int offset) {
+		for (int i = from, j = offset; i < to; i++, j++) {
+			int color = pixels[i];
+			float y = Images.GRAY_R[color >> 16 & 0xFF] + Images.GRAY_G[color >> 8 & 0xFF] + Images.GRAY_B[color & 0xFF];
+
+			dst[j] = (byte) (y * 255);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * One finished run of a {@link StageListener.Stage stage}.
+ */
+public final class StageEvent {
+	// allocation counters of the running JVM, or null if it does not provide them
+	private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+	/**
+	 * The stage that ran.
+	 */
+	public final StageListener.Stage stage;
+
+	/**
+	 * The wall time the stage took, in nanoseconds.
+	 */
+	public final long nanos;
+
+	/**
+	 * The number of pixels the stage worked on.
+	 */
+	public final long pixels;
+
+	/**
+	 * The number of bytes allocated by the thread that ran the stage, or -1 if the JVM cannot
+	 * tell. Allocations made on pool threads on the stage's behalf are not included.
+	 */
+	public final long allocatedBytes;
+
+	StageEvent(StageListener.Stage stage, long nanos, long pixels, long allocatedBytes) {
+		this.stage = stage;
+		this.nanos = nanos;
+		this.pixels = pixels;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s: %d pixels in %.3f ms, %s",
+			stage, pixels, nanos / 1e6, allocatedBytes < 0 ? "allocation unknown" : allocatedBytes + " bytes allocated"
+		);
+	}
+
+	// returns a timer for a stage starting now, or null if no listener is registered; passing the
+	// result to finish costs next to nothing in that case
+	static Timer start() {
+		StageListener listener = Images.getStageListener();
+		return listener == null ? null : new Timer(listener);
+	}
+
+	// reports the stage timed by timer, if there is one
+	static void finish(Timer timer, StageListener.Stage stage, long pixels) {
+		if (timer != null) {
+			timer.finish(stage, pixels);
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+				var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+				if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+					return threads;
+				}
+			}
+		} catch (LinkageError | RuntimeException ex) {
+			// the jdk.management module is not available
+		}
+		return null;
+	}
+
+	private static long allocatedBytes() {
+		return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// a stage in progress
+	static final class Timer {
+		private final StageListener listener;
+		private final long startNanos;
+		private final long startBytes;
+
+		private Timer(StageListener listener) {
+			this.listener = listener;
+			this.startBytes = allocatedBytes();
+			this.startNanos = System.nanoTime();
+		}
+
+		private void finish(StageListener.Stage stage, long pixels) {
+			long nanos = System.nanoTime() - startNanos;
+			long bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+
+			listener.stageFinished(new StageEvent(stage, nanos, pixels, bytes));
+		}
+	}
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link StageListener} that keeps a latency histogram and running totals for each stage. Time
+ * is recorded in buckets of powers of two nanoseconds, so percentiles are accurate to within a
+ * factor of two, which is enough to see which stage regressed.
+ *
+ * <pre>{@code
+ * var stats = new StageHistogram();
+ * Images.setStageListener(stats);
+ * // ...
+ * System.out.println(stats);
+ * }</pre>
+ */
+public final class StageHistogram implements StageListener {
+	// bucket i holds times in [2^i, 2^(i + 1)) nanoseconds; bucket 0 also holds 0
+	private static final int BUCKETS = 64;
+
+	private final PerStage[] stages = new PerStage[Stage.values().length];
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public StageHistogram() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new PerStage();
+		}
+	}
+
+	@Override
+	public void stageFinished(StageEvent event) {
+		PerStage s = stages[event.stage.ordinal()];
+
+		s.count.increment();
+		s.nanos.add(event.nanos);
+		s.pixels.add(event.pixels);
+		if (event.allocatedBytes > 0) {
+			s.bytes.add(event.allocatedBytes);
+		}
+		s.buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, event.nanos)));
+	}
+
+	/**
+	 * Returns the number of times a stage has run.
+	 *
+	 * @param stage the stage
+	 * @return the run count
+	 */
+	public long count(Stage stage) {
+		return stages[stage.ordinal()].count.sum();
+	}
+
+	/**
+	 * Returns the total time spent in a stage, in nanoseconds.
+	 *
+	 * @param stage the stage
+	 * @return the total time
+	 */
+	public long totalNanos(Stage stage) {
+		return stages[stage.ordinal()].nanos.sum();
+	}
+
+	/**
+	 * Returns the total number of pixels a stage has worked on.
+	 *
+	 * @param stage the stage
+	 * @return the total pixel count
+	 */
+	public long totalPixels(Stage stage) {
+		return stages[stage.ordinal()].pixels.sum();
+	}
+
+	/**
+	 * Returns the total number of bytes allocated in a stage, as far as the JVM can tell.
+	 *
+	 * @param stage the stage
+	 * @return the total allocation
+	 */
+	public long totalAllocatedBytes(Stage stage) {
+		return stages[stage.ordinal()].bytes.sum();
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of a stage's run times: the end of the
+	 * bucket the percentile falls in.
+	 *
+	 * @param stage the stage
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the time in nanoseconds, or 0 if the stage has not run
+	 * @throws IllegalArgumentException if {@code percentile} is out of range
+	 */
+	public long percentileNanos(Stage stage, double percentile) throws IllegalArgumentException {
+		if (!(percentile >= 0 && percentile <= 100))
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+
+		AtomicLongArray buckets = stages[stage.ordinal()].buckets;
+
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Clears every count and bucket.
+	 */
+	public void reset() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new PerStage();
+		}
+	}
+
+	/**
+	 * Returns a table with one line per stage that has run: run count, total and mean time,
+	 * median and 99th percentile, throughput, and allocation.
+	 */
+	@Override
+	public String toString() {
+		var sb = new StringBuilder(String.format(
+			"%-8s %8s %10s %10s %10s %10s %12s %12s%n",
+			"stage", "runs", "total ms", "mean ms", "p50 ms", "p99 ms", "Mpixels/s", "MB alloc"
+		));
+
+		for (Stage stage : Stage.values()) {
+			long count = count(stage);
+			if (count == 0) continue;
+
+			long nanos = totalNanos(stage);
+			sb.append(String.format(
+				"%-8s %8d %10.1f %10.3f %10.3f %10.3f %12.1f %12.1f%n",
+				stage, count, nanos / 1e6, nanos / 1e6 / count,
+				percentileNanos(stage, 50) / 1e6, percentileNanos(stage, 99) / 1e6,
+				nanos == 0 ? 0 : totalPixels(stage) * 1e3 / nanos,
+				totalAllocatedBytes(stage) / 1e6
+			));
+		}
+
+		return sb.toString();
+	}
+
+	private static final class PerStage {
+		final LongAdder count  = new LongAdder();
+		final LongAdder nanos  = new LongAdder();
+		final LongAdder pixels = new LongAdder();
+		final LongAdder bytes  = new LongAdder();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Receives timing and allocation figures for each stage of image processing. Register one with
+ * {@link Images#setStageListener(StageListener)}; when none is registered, stages are not timed
+ * at all.
+ * <p>
+ * Stages may run on several threads at once, so implementations must be thread-safe. They are
+ * called on the thread that ran the stage, right after it finishes, and should return quickly.
+ * {@link StageHistogram} and {@link JfrStageListener} are ready-made implementations.
+ */
+@FunctionalInterface
+public interface StageListener {
+	/**
+	 * A step of image processing.
+	 */
+	enum Stage {
+		/**
+		 * Decoding an image file.
+		 */
+		DECODE,
+
+		/**
+		 * Reading the pixels of an image and converting them to linear RGB.
+		 */
+		PIXELS,
+
+		/**
+		 * Converting pixels from linear RGB back to sRGB.
+		 */
+		GAMMA,
+
+		/**
+		 * Building a palette.
+		 */
+		PALETTE,
+
+		/**
+		 * Refining a palette with k-means, which happens within {@link #PALETTE}.
+		 */
+		REFINE,
+
+		/**
+		 * Mapping pixels to palette colors, dithering included.
+		 */
+		MAPPING,
+
+		/**
+		 * Converting an image to grayscale.
+		 */
+		GRAY,
+
+		/**
+		 * Resizing an image.
+		 */
+		RESIZE,
+
+		/**
+		 * Encoding an image file.
+		 */
+		ENCODE
+	}
+
+	/**
+	 * Called after a stage finishes.
+	 *
+	 * @param event what ran and what it cost
+	 */
+	void stageFinished(StageEvent event);
+}
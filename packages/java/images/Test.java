@@ -8,16 +8,23 @@ public class Test {
 	public static void main(String[] args) throws Exception {
 		var img = ImageIO.read(new File("C:\\Users\\mdavi\\Downloads\\angry-laugh.png"));
 
-		for (int i = 512; i > 1; i /= 2) {
-			out.printf("Quantizing with %d colors... ", i);
-			long start = System.currentTimeMillis();
-	
-			File result = new File(String.format("C:\\Users\\mdavi\\Downloads\\angry-laugh-%d.png", i));
-			var quantized = Images.quantize(img, i);
-			ImageIO.write(quantized, "png", result);
-	
-			long end = System.currentTimeMillis();
-			out.printf("Finished in %d ms%n", end - start);
+		int[] counts = { 512, 256, 128, 64, 32, 16, 8, 4, 2 };
+
+		var stages = new StageHistogram();
+		Images.setStageListener(stages);
+
+		out.printf("Quantizing with %d color counts... ", counts.length);
+		long start = System.currentTimeMillis();
+
+		var quantized = Images.quantize(img, counts, new QuantizeOptions());
+
+		long end = System.currentTimeMillis();
+		out.printf("Finished in %d ms%n", end - start);
+		out.print(stages);
+
+		for (var entry : quantized.entrySet()) {
+			File result = new File(String.format("C:\\Users\\mdavi\\Downloads\\angry-laugh-%d.png", entry.getKey()));
+			ImageIO.write(entry.getValue(), "png", result);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,400 @@
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Vector;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Processes image files that are too large to decode in one piece. The source is read in bands of
+ * whole rows through {@link ImageReadParam#setSourceRegion source regions}, and the result is
+ * handed to the {@link ImageWriter} as an image that produces its bands on demand, so only a few
+ * bands are ever in memory at once.
+ * <p>
+ * How far this goes depends on the plugins: formats whose readers can seek to a region (such as
+ * TIFF) decode each band once, while others decode from the top of the file for every band.
+ * Writers that pull rows as they encode (such as PNG and TIFF) keep memory bounded. Quantized
+ * results carry an alpha channel, so they need a format that can store one.
+ * <p>
+ * Settings are changed with chained setters:
+ *
+ * <pre>{@code
+ * new TiledImages().bandHeight(512).paletteSubsampling(4)
+ *     .quantize(source, dest, "png", 64, new QuantizeOptions());
+ * }</pre>
+ */
+public final class TiledImages {
+	/**
+	 * The default number of rows in each band.
+	 */
+	public static final int DEFAULT_BAND_HEIGHT = 256;
+
+	private int bandHeight = DEFAULT_BAND_HEIGHT;
+	private int paletteSubsampling = 1;
+
+	/**
+	 * Creates a tiled processor with the default settings.
+	 */
+	public TiledImages() {}
+
+	/**
+	 * Sets the number of rows in each band.
+	 *
+	 * @param rows the band height
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code rows} is less than 1
+	 */
+	public TiledImages bandHeight(int rows) throws IllegalArgumentException {
+		if (rows < 1)
+			throw new IllegalArgumentException("band height must be positive");
+
+		bandHeight = rows;
+		return this;
+	}
+
+	/**
+	 * Sets how sparsely the source is sampled when building the palette. With a value of {@code n},
+	 * every {@code n}th pixel of every {@code n}th row is used. The mapping pass always uses every
+	 * pixel. Defaults to 1.
+	 *
+	 * @param n the subsampling period in both directions
+	 * @return this object
+	 * @throws IllegalArgumentException if {@code n} is less than 1
+	 */
+	public TiledImages paletteSubsampling(int n) throws IllegalArgumentException {
+		if (n < 1)
+			throw new IllegalArgumentException("subsampling must be positive");
+
+		paletteSubsampling = n;
+		return this;
+	}
+
+	/**
+	 * Quantizes {@code source} to at most {@code numColors} colors and writes the result to
+	 * {@code dest}. The source is read twice: once to build the palette, and once to map it.
+	 *
+	 * @param source the image file to read
+	 * @param dest the image file to write
+	 * @param format the informal name of the output format, such as {@code "png"}
+	 * @param numColors the maximum number of colors in the result
+	 * @param options palette engine, refinement, lookup mode, and pool used for each band; the
+	 *   palette is sampled with {@link #paletteSubsampling(int)} rather than the sampling settings
+	 * @throws IOException if the source cannot be decoded or the result cannot be written
+	 */
+	public void quantize(File source, File dest, String format, int numColors, QuantizeOptions options)
+			throws IOException {
+		try (var in = new Source(source)) {
+			int[] palette = buildPalette(in, numColors, options);
+			PaletteMapper mapper = options.lookup().createMapper(palette);
+
+			var bands = new Bands(in, ColorModel.getRGBdefault()) {
+				@Override
+				void fill(int[] pixels, WritableRaster band) {
+					int[] out = ((DataBufferInt) band.getDataBuffer()).getData();
+
+					for (int i = 0; i < pixels.length; i++) {
+						out[i] = Images.gammaCompress(mapper.nearest(pixels[i]));
+					}
+				}
+			};
+
+			write(bands, dest, format);
+		}
+	}
+
+	/**
+	 * Converts {@code source} to grayscale and writes the result to {@code dest}.
+	 *
+	 * @param source the image file to read
+	 * @param dest the image file to write
+	 * @param format the informal name of the output format, such as {@code "png"}
+	 * @throws IOException if the source cannot be decoded or the result cannot be written
+	 */
+	public void grayscale(File source, File dest, String format) throws IOException {
+		try (var in = new Source(source)) {
+			ColorModel gray = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel();
+
+			var bands = new Bands(in, gray) {
+				@Override
+				void fill(int[] pixels, WritableRaster band) {
+					byte[] out = ((DataBufferByte) band.getDataBuffer()).getData();
+
+					Images.getGray(pixels, 0, pixels.length, out, 0);
+					Images.gammaCompress(out, 0, out.length);
+				}
+			};
+
+			write(bands, dest, format);
+		}
+	}
+
+	private int[] buildPalette(Source in, int numColors, QuantizeOptions options) throws IOException {
+		var param = in.reader.getDefaultReadParam();
+		param.setSourceSubsampling(paletteSubsampling, paletteSubsampling, 0, 0);
+
+		// keep whole multiples of the subsampling period in each band so that the sampling grid
+		// lines up across bands
+		int rows = Math.max(1, bandHeight / paletteSubsampling) * paletteSubsampling;
+
+		// refinement needs a histogram whichever engine builds the palette
+		boolean histogram = options.engine() == QuantizeOptions.Engine.MEDIAN_CUT || options.refineIterations() > 0;
+		ColorHistogram hist = histogram ? new ColorHistogram() : null;
+		OctreeQuantizer octree = options.engine() == QuantizeOptions.Engine.OCTREE
+			? new OctreeQuantizer(numColors)
+			: null;
+		long nPixels = 0;
+
+		for (int y = 0; y < in.height; y += rows) {
+			param.setSourceRegion(new Rectangle(0, y, in.width, Math.min(rows, in.height - y)));
+			int[] pixels = Images.getPixels(in.reader.read(0, param), options.pool());
+
+			if (hist != null) {
+				hist.addAll(pixels, 0, pixels.length);
+			}
+			if (octree != null) {
+				octree.add(pixels, 0, pixels.length);
+			}
+			nPixels += pixels.length;
+		}
+
+		int[] palette = octree != null ? octree.palette() : new MedianCut(hist).palette(numColors);
+		return Images.refine(hist, palette, nPixels, options);
+	}
+
+	private static void write(Bands bands, File dest, String format) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext())
+			throw new IOException("no writer for format " + format);
+
+		ImageWriter writer = writers.next();
+
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(dest)) {
+			if (out == null)
+				throw new IOException("cannot write to " + dest);
+
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(bands, null, null), writer.getDefaultWriteParam());
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	// an open image file and the reader decoding it
+	private static final class Source implements AutoCloseable {
+		final ImageInputStream stream;
+		final ImageReader reader;
+		final int width, height;
+
+		Source(File file) throws IOException {
+			stream = ImageIO.createImageInputStream(file);
+			if (stream == null)
+				throw new IOException("cannot read " + file);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) {
+				stream.close();
+				throw new IOException("no reader for " + file);
+			}
+
+			reader = readers.next();
+			reader.setInput(stream, false, true);
+
+			width  = reader.getWidth(0);
+			height = reader.getHeight(0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.dispose();
+			stream.close();
+		}
+	}
+
+	// the processed image, tiled into bands of whole rows that are decoded and processed when they
+	// are first asked for; only the most recent band is kept
+	private abstract class Bands implements RenderedImage {
+		private final Source in;
+		private final ColorModel colorModel;
+		private final SampleModel sampleModel;
+		private final ImageReadParam param;
+
+		private int cachedIndex = -1;
+		private Raster cached;
+
+		Bands(Source in, ColorModel colorModel) {
+			this.in = in;
+			this.colorModel = colorModel;
+			this.sampleModel = colorModel.createCompatibleSampleModel(in.width, bandHeight);
+			this.param = in.reader.getDefaultReadParam();
+		}
+
+		// writes the processed pixels of one band, given as linear RGB, into the band's raster
+		abstract void fill(int[] pixels, WritableRaster band);
+
+		private synchronized Raster band(int index) {
+			if (index == cachedIndex) return cached;
+
+			int y = index * bandHeight;
+			int rows = Math.min(bandHeight, in.height - y);
+			param.setSourceRegion(new Rectangle(0, y, in.width, rows));
+
+			int[] pixels;
+			try {
+				pixels = Images.getPixels(in.reader.read(0, param), null);
+			} catch (IOException ex) {
+				throw new IllegalStateException("failed to decode rows " + y + " to " + (y + rows), ex);
+			}
+
+			WritableRaster band = Raster.createWritableRaster(
+				colorModel.createCompatibleSampleModel(in.width, rows), new Point(0, y)
+			);
+			fill(pixels, band);
+
+			cachedIndex = index;
+			cached = band;
+
+			return band;
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		@Override
+		public ColorModel getColorModel() {
+			return colorModel;
+		}
+
+		@Override
+		public SampleModel getSampleModel() {
+			return sampleModel;
+		}
+
+		@Override
+		public int getWidth() {
+			return in.width;
+		}
+
+		@Override
+		public int getHeight() {
+			return in.height;
+		}
+
+		@Override
+		public int getMinX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinY() {
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles() {
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles() {
+			return (in.height + bandHeight - 1) / bandHeight;
+		}
+
+		@Override
+		public int getMinTileX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY() {
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth() {
+			return in.width;
+		}
+
+		@Override
+		public int getTileHeight() {
+			return bandHeight;
+		}
+
+		@Override
+		public int getTileGridXOffset() {
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset() {
+			return 0;
+		}
+
+		@Override
+		public Raster getTile(int tileX, int tileY) {
+			return band(tileY);
+		}
+
+		@Override
+		public Raster getData() {
+			return getData(new Rectangle(0, 0, in.width, in.height));
+		}
+
+		@Override
+		public Raster getData(Rectangle rect) {
+			WritableRaster res = Raster.createWritableRaster(
+				colorModel.createCompatibleSampleModel(rect.width, rect.height), rect.getLocation()
+			);
+			return copyData(res);
+		}
+
+		@Override
+		public WritableRaster copyData(WritableRaster raster) {
+			Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, in.width, in.height));
+			if (bounds.isEmpty()) return raster;
+
+			int first = bounds.y / bandHeight;
+			int last  = (bounds.y + bounds.height - 1) / bandHeight;
+
+			for (int i = first; i <= last; i++) {
+				Raster band = band(i);
+				Rectangle overlap = band.getBounds().intersection(bounds);
+
+				raster.setRect(band.createChild(
+					overlap.x, overlap.y, overlap.width, overlap.height,
+					overlap.x, overlap.y, null
+				));
+			}
+
+			return raster;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@link PixelKernels} loops with {@code jdk.incubator.vector}, a full vector of pixels at a
+ * time. Only compiled and loaded when the module is available; see {@link PixelKernels} for how.
+ * <p>
+ * Every per-channel conversion is a table lookup, done as a gather from the same tables the scalar
+ * loops read, and gray levels are summed in the same order, so the results are identical to
+ * {@link ScalarKernels} bit for bit. The pixels left over after the last full vector go through
+ * the scalar loops.
+ */
+final class VectorKernels implements PixelKernels {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	// as many lanes as INTS, for the same pixels
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES =
+		VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * Byte.SIZE));
+
+	// a float whose ulp is 1, and its bits
+	private static final float ROUNDING = 0x1p23f;
+	private static final int ROUNDING_BITS = Float.floatToRawIntBits(ROUNDING);
+
+	// the getGray tables as raw float bits, so that they can go through the same int gathers as
+	// the gamma tables
+	private static final int[] GRAY_R = floatBits(Images.GRAY_R);
+	private static final int[] GRAY_G = floatBits(Images.GRAY_G);
+	private static final int[] GRAY_B = floatBits(Images.GRAY_B);
+
+	private final ScalarKernels scalar = new ScalarKernels();
+
+	VectorKernels() {
+		// touch the module now, so a JVM without it fails here and gets the scalar kernels instead
+		if (FLOATS.length() != INTS.length())
+			throw new IllegalStateException("float and int vectors differ in length");
+	}
+
+	@Override
+	public void gammaExpand(int[] pixels, int from, int to) {
+		int end = from + INTS.loopBound(to - from);
+		lookupChannels(Images.SRGB_TO_LINEAR, pixels, from, end);
+		scalar.gammaExpand(pixels, end, to);
+	}
+
+	@Override
+	public void gammaCompress(int[] pixels, int from, int to) {
+		int end = from + INTS.loopBound(to - from);
+		lookupChannels(Images.LINEAR_TO_SRGB, pixels, from, end);
+		scalar.gammaCompress(pixels, end, to);
+	}
+
+	@Override
+	public void gammaCompress(byte[] values, int from, int to) {
+		int[] table = Images.LINEAR_TO_SRGB;
+		int[] index = new int[INTS.length()];
+
+		int i = from;
+		for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+			var v = (IntVector) ByteVector.fromArray(BYTES, values, i)
+				.convertShape(VectorOperators.B2I, INTS, 0);
+
+			var res = (ByteVector) gather(table, v.and(0xFF), index)
+				.convertShape(VectorOperators.I2B, BYTES, 0);
+			res.intoArray(values, i);
+		}
+
+		scalar.gammaCompress(values, i, to);
+	}
+
+	@Override
+	public void getGray(int[] pixels, int from, int to, byte[] dst, int offset) {
+		int[] index = new int[INTS.length()];
+
+		int i = from;
+		for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+			var color = IntVector.fromArray(INTS, pixels, i);
+
+			// (r + g) + b, the order the scalar loop adds them in
+			var y = gather(GRAY_R, color.lanewise(VectorOperators.LSHR, 16).and(0xFF), index).reinterpretAsFloats()
+				.add(gather(GRAY_G, color.lanewise(VectorOperators.LSHR, 8).and(0xFF), index).reinterpretAsFloats())
+				.add(gather(GRAY_B, color.and(0xFF), index).reinterpretAsFloats());
+
+			var gray = (ByteVector) truncate(y.mul(255f)).convertShape(VectorOperators.I2B, BYTES, 0);
+			gray.intoArray(dst, offset + (i - from));
+		}
+
+		scalar.getGray(pixels, i, to, dst, offset + (i - from));
+	}
+
+	// replaces each channel of pixels[from, to) with its entry in table, keeping alpha; the
+	// length of the range must be a multiple of the vector length
+	private static void lookupChannels(int[] table, int[] pixels, int from, int to) {
+		int[] index = new int[INTS.length()];
+
+		for (int i = from; i < to; i += INTS.length()) {
+			var color = IntVector.fromArray(INTS, pixels, i);
+
+			color.and(0xFF000000)
+				.or(gather(table, color.lanewise(VectorOperators.LSHR, 16).and(0xFF), index).lanewise(VectorOperators.LSHL, 16))
+				.or(gather(table, color.lanewise(VectorOperators.LSHR, 8).and(0xFF), index).lanewise(VectorOperators.LSHL, 8))
+				.or(gather(table, color.and(0xFF), index))
+				.intoArray(pixels, i);
+		}
+	}
+
+	// (int) v for every lane of v, which must be from 0 to 2^22; the same as an F2I conversion,
+	// which is not compiled to vector instructions on every JVM, using only float arithmetic: adding
+	// 2^23 rounds v to the nearest whole number and leaves it in the low bits of the float
+	private static IntVector truncate(FloatVector v) {
+		var rounded = v.add(ROUNDING).sub(ROUNDING);
+		var whole = rounded.lanewise(VectorOperators.SUB, 1f, rounded.compare(VectorOperators.GT, v));
+
+		return whole.add(ROUNDING).reinterpretAsInts().sub(ROUNDING_BITS);
+	}
+
+	private static int[] floatBits(float[] table) {
+		int[] res = new int[table.length];
+		for (int i = 0; i < table.length; i++) {
+			res[i] = Float.floatToRawIntBits(table[i]);
+		}
+		return res;
+	}
+
+	// the entries of table at each lane of v; index is scratch space of one vector's length
+	private static IntVector gather(int[] table, IntVector v, int[] index) {
+		v.intoArray(index, 0);
+		return IntVector.fromArray(INTS, table, 0, index, 0);
+	}
+}